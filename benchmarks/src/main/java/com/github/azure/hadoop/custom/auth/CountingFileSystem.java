@@ -0,0 +1,172 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for HDFS: the local file system under the "counting" scheme, counting the calls which are
+ * a name node RPC on HDFS. The calls made by the local file system itself, such as the parent folders created
+ * by create, are not counted, HDFS does them in the same RPC.
+ */
+public class CountingFileSystem extends RawLocalFileSystem {
+
+    public static final String SCHEME = "counting";
+
+    private static final URI NAME = URI.create(SCHEME + ":///");
+
+    private static final ConcurrentMap<String, AtomicLong> CALLS = new ConcurrentHashMap<>();
+
+    // depth of the calls of the current thread, only the outermost one is counted
+    private static final ThreadLocal<int[]> DEPTH = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    public static void reset() {
+        CALLS.clear();
+    }
+
+    /**
+     * @return the number of calls of each operation divided by the number of benchmark invocations.
+     */
+    public static String report(long invocations) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(CALLS).entrySet()) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(entry.getKey()).append('=')
+                    .append(String.format("%.2f", (double) entry.getValue().get() / Math.max(1, invocations)));
+        }
+        return sb.length() == 0 ? "none" : sb.toString();
+    }
+
+    private static void enter(String operation) {
+        if (DEPTH.get()[0]++ == 0) {
+            AtomicLong count = CALLS.get(operation);
+            if (count == null) {
+                AtomicLong previous = CALLS.putIfAbsent(operation, count = new AtomicLong());
+                count = previous == null ? count : previous;
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    private static void exit() {
+        DEPTH.get()[0]--;
+    }
+
+    @Override
+    public URI getUri() {
+        return NAME;
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+        enter("open");
+        try {
+            return super.open(f, bufferSize);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+                                     short replication, long blockSize, Progressable progress) throws IOException {
+        enter("create");
+        try {
+            return super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public FSDataOutputStream create(Path f, boolean overwrite, int bufferSize, short replication, long blockSize,
+                                     Progressable progress) throws IOException {
+        enter("create");
+        try {
+            return super.create(f, overwrite, bufferSize, replication, blockSize, progress);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean rename(Path src, Path dst) throws IOException {
+        enter("rename");
+        try {
+            return super.rename(src, dst);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean delete(Path p, boolean recursive) throws IOException {
+        enter("delete");
+        try {
+            return super.delete(p, recursive);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public FileStatus getFileStatus(Path f) throws IOException {
+        enter("getFileStatus");
+        try {
+            return super.getFileStatus(f);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean exists(Path f) throws IOException {
+        enter("getFileStatus");
+        try {
+            return super.exists(f);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public FileStatus[] listStatus(Path f) throws IOException {
+        enter("listStatus");
+        try {
+            return super.listStatus(f);
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+        enter("mkdirs");
+        try {
+            return super.mkdirs(f, permission);
+        } finally {
+            exit();
+        }
+    }
+}
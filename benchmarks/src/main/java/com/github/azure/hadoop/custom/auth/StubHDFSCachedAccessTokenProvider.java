@@ -0,0 +1,13 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.fs.azurebfs.extensions.CustomTokenProviderAdaptee;
+
+public class StubHDFSCachedAccessTokenProvider extends HDFSCachedAccessTokenProvider {
+    private final StubTokenProvider tokenProvider = new StubTokenProvider();
+
+    @Override
+    protected CustomTokenProviderAdaptee getImpl() {
+        return tokenProvider;
+    }
+
+}
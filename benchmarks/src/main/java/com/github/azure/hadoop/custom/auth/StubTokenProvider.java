@@ -0,0 +1,65 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for Azure AD: returns a token valid for one hour after an optional simulated latency.
+ */
+public class StubTokenProvider implements AzureADTokenProvider {
+
+    public static final String STUB_FETCH_LATENCY = "benchmark.stub.fetch.latency";
+
+    private static final long ONE_HOUR = 3600 * 1000;
+
+    // a token of a realistic size
+    private static final String TOKEN = new String(new char[1500]).replace('\0', 'x');
+
+    private static final AtomicLong FETCH_COUNT = new AtomicLong();
+
+    private long fetchLatency;
+
+    private volatile long expiryTime;
+
+    @Override
+    public void initialize(Configuration configuration, String accountName) throws IOException {
+        this.fetchLatency = configuration.getLong(STUB_FETCH_LATENCY, 0);
+    }
+
+    @Override
+    public AzureADToken getAzureADToken() throws IOException {
+        if (fetchLatency > 0) {
+            try {
+                Thread.sleep(fetchLatency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fetching the token.");
+            }
+        }
+        FETCH_COUNT.incrementAndGet();
+        AzureADToken token = new AzureADToken();
+        token.setAccessToken(TOKEN);
+        token.setExpiry(new Date(System.currentTimeMillis() + ONE_HOUR));
+        this.expiryTime = token.getExpiry().getTime();
+        return token;
+    }
+
+    @Override
+    public String getAccessToken() throws IOException {
+        return getAzureADToken().getAccessToken();
+    }
+
+    @Override
+    public Date getExpiryTime() {
+        return new Date(expiryTime);
+    }
+
+    public static long getFetchCount() {
+        return FETCH_COUNT.get();
+    }
+}
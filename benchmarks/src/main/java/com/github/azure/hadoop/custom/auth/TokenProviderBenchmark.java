@@ -0,0 +1,254 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.FS_AZURE_ACCOUNT_OAUTH_CLIENT_ID;
+
+/**
+ * Measures getAccessToken() of the caching providers, with Azure AD replaced by {@link StubTokenProvider}
+ * and HDFS replaced by the local file system, {@link CountingFileSystem}.
+ * <ul>
+ *     <li>warm: the token is in memory, run it with "-t 1", "-t 16", ... "-t 256" to measure the contention.</li>
+ *     <li>coldCache: neither memory nor storage has the token, it is fetched from the stub and written to the cache.
+ *     The cache holds the records of N other identities, the file cache lists them on a miss.</li>
+ *     <li>cachedFiles: the token is not in memory, it is read from the record of its identity.</li>
+ * </ul>
+ * The last two need a new provider for every call, so they only run in one thread and only measure the latency.
+ * With the HDFS cache, they print after each iteration the number of calls per getAccessToken() of each file system
+ * operation, which are name node RPCs on HDFS.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenProviderBenchmark {
+
+    private static final String ACCOUNT_NAME = "benchmark.dfs.core.windows.net";
+    private static final String CLIENT_ID = "benchmark-client";
+    private static final long ONE_HOUR = 3600 * 1000;
+
+    @State(Scope.Benchmark)
+    public static class WarmState {
+
+        @Param({"hdfs", "file"})
+        public String cache;
+
+        AzureADTokenProvider provider;
+
+        private File root;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            root = createRoot();
+            provider = createProvider(cache, root);
+            provider.getAccessToken();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteRoot(root);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ColdState {
+
+        @Param({"hdfs", "file"})
+        public String cache;
+
+        @Param({"0", "1000"})
+        public int records;
+
+        AzureADTokenProvider provider;
+
+        private File root;
+
+        private long invocations;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            root = createRoot();
+            // tokens of other identities sharing the cache
+            for (int i = 0; i < records; i++) {
+                writeRecord(cache, root, MappedTokenCache.getIdentityHash("benchmark-identity-" + i));
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void resetCalls() {
+            invocations = 0;
+            CountingFileSystem.reset();
+        }
+
+        @Setup(Level.Invocation)
+        public void clear() throws IOException {
+            File record = getRecordFile(cache, root, getIdentityHash(root));
+            if (record.exists() && !record.delete()) {
+                throw new IOException("Failed to delete " + record);
+            }
+            // a new provider, so that the token is not in memory
+            TokenRegistry.clear();
+            provider = createProvider(cache, root);
+            invocations++;
+        }
+
+        @TearDown(Level.Iteration)
+        public void reportCalls() {
+            reportFileSystemCalls(cache, invocations);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteRoot(root);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CachedFilesState {
+
+        @Param({"hdfs", "file"})
+        public String cache;
+
+        AzureADTokenProvider provider;
+
+        private File root;
+
+        private long invocations;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            root = createRoot();
+            provider = createProvider(cache, root);
+            provider.getAccessToken();
+        }
+
+        @Setup(Level.Iteration)
+        public void resetCalls() {
+            invocations = 0;
+            CountingFileSystem.reset();
+        }
+
+        @Setup(Level.Invocation)
+        public void clear() throws IOException {
+            // a new provider, so that the token is not in memory
+            TokenRegistry.clear();
+            provider = createProvider(cache, root);
+            invocations++;
+        }
+
+        @TearDown(Level.Iteration)
+        public void reportCalls() {
+            reportFileSystemCalls(cache, invocations);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteRoot(root);
+        }
+    }
+
+    @Benchmark
+    public String warm(WarmState state) throws IOException {
+        return state.provider.getAccessToken();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @BenchmarkMode(Mode.SampleTime)
+    public String coldCache(ColdState state) throws IOException {
+        return state.provider.getAccessToken();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @BenchmarkMode(Mode.SampleTime)
+    public String cachedFiles(CachedFilesState state) throws IOException {
+        return state.provider.getAccessToken();
+    }
+
+    private static File createRoot() throws IOException {
+        File root = Files.createTempDirectory("token-benchmark").toFile();
+        // the file cache is under the user home
+        System.setProperty("user.home", new File(root, "home").getAbsolutePath());
+        return root;
+    }
+
+    private static void deleteRoot(File root) throws IOException {
+        TokenRegistry.clear();
+        FileUtils.deleteDirectory(root);
+    }
+
+    private static Configuration createConfiguration(File root) {
+        Configuration configuration = new Configuration();
+        configuration.set(FS_AZURE_ACCOUNT_OAUTH_CLIENT_ID, CLIENT_ID);
+        configuration.setClass("fs." + CountingFileSystem.SCHEME + ".impl", CountingFileSystem.class, FileSystem.class);
+        configuration.set(HDFSCachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_HDFS_CACHE_PATH,
+                CountingFileSystem.SCHEME + ":" + new File(root, "hdfs").getAbsolutePath());
+        return configuration;
+    }
+
+    private static AzureADTokenProvider createProvider(String cache, File root) throws IOException {
+        Configuration configuration = createConfiguration(root);
+        AzureADTokenProvider provider;
+        if ("hdfs".equals(cache)) {
+            provider = new StubHDFSCachedAccessTokenProvider();
+        } else {
+            provider = new StubFileCachedAccessTokenProvider();
+        }
+        provider.initialize(configuration, ACCOUNT_NAME);
+        return provider;
+    }
+
+    private static File getCacheFolder(String cache, File root) {
+        if ("hdfs".equals(cache)) {
+            return new File(root, "hdfs/MSITokenCache");
+        }
+        return new File(root, "home/.azure/MSITokenCache");
+    }
+
+    private static long getIdentityHash(File root) {
+        return MappedTokenCache.getIdentityHash(TokenRegistry.getIdentityKey(createConfiguration(root), new StubTokenProvider()));
+    }
+
+    private static File getRecordFile(String cache, File root, long identityHash) {
+        if ("hdfs".equals(cache)) {
+            return new File(getCacheFolder(cache, root), Long.toHexString(identityHash) + "/latest.token");
+        }
+        return new File(getCacheFolder(cache, root), Long.toHexString(identityHash) + ".token");
+    }
+
+    private static void reportFileSystemCalls(String cache, long invocations) {
+        if ("hdfs".equals(cache)) {
+            System.out.println("\nFile system calls per getAccessToken(): " + CountingFileSystem.report(invocations));
+        }
+    }
+
+    private static void writeRecord(String cache, File root, long identityHash) throws IOException {
+        File file = getRecordFile(cache, root, identityHash);
+        file.getParentFile().mkdirs();
+        CachedToken token = new CachedToken("token", System.currentTimeMillis() + ONE_HOUR);
+        Files.write(file.toPath(), TokenRecord.encode(identityHash, token, TokenEncryption.get(new Configuration(false))));
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Asynchronous facade of a token provider, returning the tokens as {@link CompletableFuture}s completed
+ * by a small dedicated executor, so that callers can prefetch tokens or fetch several of them in parallel.
+ * The blocking methods are kept for ABFS and run in the calling thread.
+ * When it is created by ABFS, the provider it wraps is configured by "fs.azure.custom.token.async.delegate".
+ */
+public class AsyncAccessTokenProvider implements AzureADTokenProvider {
+
+    public static final String AZURE_CUSTOM_TOKEN_ASYNC_DELEGATE = "fs.azure.custom.token.async.delegate";
+    public static final String AZURE_CUSTOM_TOKEN_ASYNC_THREADS = "fs.azure.custom.token.async.threads";
+    public static final int DEFAULT_ASYNC_THREADS = 4;
+
+    private static final String THREAD_NAME_PREFIX = "azure-token-async-";
+
+    // idle threads are stopped after this time
+    private static final long THREAD_KEEP_ALIVE = 60 * 1000;
+
+    private static volatile ThreadPoolExecutor executor;
+    private static final ReentrantLock EXECUTOR_LOCK = new ReentrantLock();
+
+    private AzureADTokenProvider delegate;
+
+    public AsyncAccessTokenProvider() {
+    }
+
+    public AsyncAccessTokenProvider(AzureADTokenProvider delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void initialize(Configuration configuration, String accountName) throws IOException {
+        if (this.delegate == null) {
+            Class<? extends AzureADTokenProvider> delegateClass = configuration.getClass(AZURE_CUSTOM_TOKEN_ASYNC_DELEGATE,
+                    MSIBasedAccessTokenProvider.class, AzureADTokenProvider.class);
+            this.delegate = ReflectionUtils.newInstance(delegateClass, configuration);
+        }
+        this.delegate.initialize(configuration, accountName);
+        createExecutor(configuration.getInt(AZURE_CUSTOM_TOKEN_ASYNC_THREADS, DEFAULT_ASYNC_THREADS));
+    }
+
+    public CompletableFuture<AzureADToken> getAzureADTokenAsync() {
+        return getAzureADTokenAsync(executor);
+    }
+
+    @Override
+    public CompletableFuture<AzureADToken> getAzureADTokenAsync(Executor executor) {
+        return delegate.getAzureADTokenAsync(executor);
+    }
+
+    @Override
+    public AzureADToken getAzureADToken() throws IOException {
+        return delegate.getAzureADToken();
+    }
+
+    @Override
+    public String getAccessToken() throws IOException {
+        return delegate.getAccessToken();
+    }
+
+    @Override
+    public Date getExpiryTime() {
+        return delegate.getExpiryTime();
+    }
+
+    /**
+     * The executor is shared by all the instances, its size is taken from the configuration of the first one.
+     */
+    private static void createExecutor(int threads) {
+        if (executor == null) {
+            EXECUTOR_LOCK.lock();
+            try {
+                if (executor == null) {
+                    ThreadPoolExecutor created = new ThreadPoolExecutor(threads, threads, THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, THREAD_NAME_PREFIX + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    created.allowCoreThreadTimeOut(true);
+                    executor = created;
+                }
+            } finally {
+                EXECUTOR_LOCK.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.security.token.TokenIdentifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Identifies an Azure AD access token carried in Hadoop {@code Credentials}: the token itself is the password,
+ * the service is the identity of the token, see {@link CredentialsTokenCacheBackend}.
+ */
+public class AzureADTokenIdentifier extends TokenIdentifier {
+
+    public static final Text KIND = new Text("AZURE_AD_TOKEN");
+
+    private Text owner = new Text();
+    private Text renewer = new Text();
+    private Text identityKey = new Text();
+    private long expiryTime;
+
+    public AzureADTokenIdentifier() {
+    }
+
+    public AzureADTokenIdentifier(String owner, String renewer, String identityKey, long expiryTime) {
+        this.owner = new Text(owner == null ? "" : owner);
+        this.renewer = new Text(renewer == null ? "" : renewer);
+        this.identityKey = new Text(identityKey);
+        this.expiryTime = expiryTime;
+    }
+
+    /**
+     * @return the identifier of a token of this kind.
+     */
+    static AzureADTokenIdentifier decode(Token<? extends TokenIdentifier> token) throws IOException {
+        if (!KIND.equals(token.getKind())) {
+            throw new IOException("Unexpected token kind " + token.getKind() + ", expected " + KIND);
+        }
+        AzureADTokenIdentifier identifier = new AzureADTokenIdentifier();
+        identifier.readFields(new DataInputStream(new ByteArrayInputStream(token.getIdentifier())));
+        return identifier;
+    }
+
+    /**
+     * @return a Hadoop token carrying the access token, with the identity of this identifier as service.
+     */
+    Token<AzureADTokenIdentifier> toToken(CachedToken token) {
+        return new Token<>(getBytes(), token.getToken().getBytes(StandardCharsets.UTF_8), KIND, identityKey);
+    }
+
+    String getIdentityKey() {
+        return identityKey.toString();
+    }
+
+    Text getRenewer() {
+        return renewer;
+    }
+
+    long getExpiryTime() {
+        return expiryTime;
+    }
+
+    @Override
+    public Text getKind() {
+        return KIND;
+    }
+
+    @Override
+    public UserGroupInformation getUser() {
+        if (owner.getLength() == 0) {
+            return null;
+        }
+        return UserGroupInformation.createRemoteUser(owner.toString());
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        owner.write(out);
+        renewer.write(out);
+        identityKey.write(out);
+        out.writeLong(expiryTime);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        owner.readFields(in);
+        renewer.readFields(in);
+        identityKey.readFields(in);
+        expiryTime = in.readLong();
+    }
+
+    @Override
+    public String toString() {
+        return KIND + " owner=" + owner + ", renewer=" + renewer + ", identity=" + identityKey + ", expiry=" + expiryTime;
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.fs.azurebfs.extensions.CustomTokenProviderAdaptee;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * A token provider returning the access token together with its expiry time,
+ * so that callers don't need a second call to {@link #getExpiryTime()} which may race with another fetch.
+ */
+public interface AzureADTokenProvider extends CustomTokenProviderAdaptee {
+
+    AzureADToken getAzureADToken() throws IOException;
+
+    /**
+     * Gets the token without blocking the caller, the blocking work runs on the executor.
+     */
+    default CompletableFuture<AzureADToken> getAzureADTokenAsync(Executor executor) {
+        return CompletableFuture.supplyAsync(new Supplier<AzureADToken>() {
+            @Override
+            public AzureADToken get() {
+                try {
+                    return getAzureADToken();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+}
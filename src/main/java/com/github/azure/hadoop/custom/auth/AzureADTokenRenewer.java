@@ -0,0 +1,50 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.security.token.TokenRenewer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Handles the Azure AD tokens carried in Hadoop {@code Credentials}. An access token cannot be extended, and
+ * the ResourceManager renewing the tokens of a job has neither the configuration of the identity nor a way to give
+ * a new token to the job, so the tokens are not managed: the application adds a new token to its credentials before
+ * the previous one expires and distributes them again, as Spark does with its credential updates.
+ */
+public class AzureADTokenRenewer extends TokenRenewer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AzureADTokenRenewer.class);
+
+    @Override
+    public boolean handleKind(Text kind) {
+        return AzureADTokenIdentifier.KIND.equals(kind);
+    }
+
+    @Override
+    public boolean isManaged(Token<?> token) throws IOException {
+        return false;
+    }
+
+    /**
+     * @return the expiry time of the token, which is not extended.
+     */
+    @Override
+    public long renew(Token<?> token, Configuration conf) throws IOException {
+        AzureADTokenIdentifier identifier = AzureADTokenIdentifier.decode(token);
+        LOG.debug("Azure AD token of {} cannot be renewed, it expires at {}", identifier.getIdentityKey(),
+                identifier.getExpiryTime());
+        return identifier.getExpiryTime();
+    }
+
+    /**
+     * Azure AD access tokens cannot be revoked, they are only dropped when the credentials are.
+     */
+    @Override
+    public void cancel(Token<?> token, Configuration conf) {
+        LOG.debug("Azure AD token cancelled, it stays valid until it expires.");
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.apache.hadoop.net.unix.DomainSocket;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.*;
+
+/**
+ * Gets the MSI token from the {@link TokenBroker} of the node, and falls back to the provider configured by
+ * "fs.azure.custom.token.broker.fallback" when the broker is not running or fails to get the token.
+ * The broker is reached through its Unix domain socket, or through TCP when it is enabled and the Hadoop
+ * native library is not loaded or the socket is not reachable.
+ */
+public class BrokerAccessTokenProvider implements AzureADTokenProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BrokerAccessTokenProvider.class);
+
+    public static final String AZURE_CUSTOM_TOKEN_BROKER_FALLBACK = "fs.azure.custom.token.broker.fallback";
+    public static final String AZURE_CUSTOM_TOKEN_BROKER_TIMEOUT = "fs.azure.custom.token.broker.timeout";
+    public static final int DEFAULT_BROKER_TIMEOUT = 30 * 1000;
+
+    private static final int CONNECT_TIMEOUT = 1000;
+
+    private String socketPath;
+
+    private boolean tcpEnabled;
+
+    private String tcpAddress;
+
+    private int port;
+
+    private int timeout;
+
+    private String request;
+
+    private AzureADTokenProvider fallback;
+
+    // expiry time of the last token
+    private volatile long tokenExpiryTime;
+
+    @Override
+    public void initialize(Configuration configuration, String accountName) throws IOException {
+        this.socketPath = configuration.get(TokenBroker.AZURE_CUSTOM_TOKEN_BROKER_SOCKET_PATH, TokenBroker.DEFAULT_BROKER_SOCKET_PATH);
+        this.tcpEnabled = configuration.getBoolean(TokenBroker.AZURE_CUSTOM_TOKEN_BROKER_TCP_ENABLED, false);
+        this.tcpAddress = configuration.getTrimmed(TokenBroker.AZURE_CUSTOM_TOKEN_BROKER_TCP_ADDRESS, TokenBroker.DEFAULT_BROKER_TCP_ADDRESS);
+        this.port = configuration.getInt(TokenBroker.AZURE_CUSTOM_TOKEN_BROKER_PORT, TokenBroker.DEFAULT_BROKER_PORT);
+        this.timeout = configuration.getInt(AZURE_CUSTOM_TOKEN_BROKER_TIMEOUT, DEFAULT_BROKER_TIMEOUT);
+        this.request = TokenBroker.REQUEST_GET
+                + " " + TokenBroker.toField(configuration.get(FS_AZURE_ACCOUNT_OAUTH_CLIENT_ID))
+                + " " + TokenBroker.toField(configuration.get(FS_AZURE_ACCOUNT_OAUTH_MSI_TENANT));
+        Class<? extends AzureADTokenProvider> fallbackClass = configuration.getClass(AZURE_CUSTOM_TOKEN_BROKER_FALLBACK,
+                MSIBasedAccessTokenProvider.class, AzureADTokenProvider.class);
+        this.fallback = ReflectionUtils.newInstance(fallbackClass, configuration);
+        this.fallback.initialize(configuration, accountName);
+    }
+
+    @Override
+    public String getAccessToken() throws IOException {
+        return getAzureADToken().getAccessToken();
+    }
+
+    @Override
+    public AzureADToken getAzureADToken() throws IOException {
+        AzureADToken token;
+        try {
+            token = getTokenFromBroker();
+            LOG.debug("get access token from broker successfully");
+        } catch (IOException e) {
+            LOG.debug("Failed to get access token from broker, falling back. {}", e.toString());
+            token = fallback.getAzureADToken();
+        }
+        this.tokenExpiryTime = token.getExpiry().getTime();
+        return token;
+    }
+
+    private AzureADToken getTokenFromBroker() throws IOException {
+        String nativeFailure = DomainSocket.getLoadingFailureReason();
+        if (nativeFailure == null) {
+            try {
+                return getTokenFromDomainSocket();
+            } catch (IOException e) {
+                if (!tcpEnabled) {
+                    throw e;
+                }
+                LOG.debug("Failed to get access token from broker socket {}, trying TCP. {}", socketPath, e.toString());
+            }
+        } else if (!tcpEnabled) {
+            throw new IOException("Unix domain sockets are not available and TCP is not enabled. " + nativeFailure);
+        }
+        return getTokenFromTcp();
+    }
+
+    private AzureADToken getTokenFromDomainSocket() throws IOException {
+        DomainSocket socket = DomainSocket.connect(socketPath);
+        try {
+            socket.setAttribute(DomainSocket.RECEIVE_TIMEOUT, timeout);
+            socket.setAttribute(DomainSocket.SEND_TIMEOUT, timeout);
+            return request(socket.getInputStream(), socket.getOutputStream());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private AzureADToken getTokenFromTcp() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(tcpAddress, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(timeout);
+            return request(socket.getInputStream(), socket.getOutputStream());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private AzureADToken request(InputStream in, OutputStream out) throws IOException {
+        out.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String response = reader.readLine();
+        if (response == null) {
+            throw new IOException("No response from token broker.");
+        }
+        String[] fields = response.split(" ", 3);
+        if (fields.length != 3 || !TokenBroker.RESPONSE_OK.equals(fields[0])) {
+            throw new IOException("Token broker failed: " + response);
+        }
+        try {
+            return new CachedToken(fields[2], Long.parseLong(fields[1])).toAzureADToken();
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid response from token broker.", e);
+        }
+    }
+
+    @Override
+    public Date getExpiryTime() {
+        return new Date(tokenExpiryTime);
+    }
+}
@@ -0,0 +1,440 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.extensions.CustomTokenProviderAdaptee;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches the tokens of another provider: in memory, shared by all the providers of the same identity in the JVM,
+ * then in the {@link TokenCacheBackend}s configured by "fs.azure.custom.token.cache.backends", looked up in order.
+ * Only when none of them has a valid token it is fetched from the provider configured by
+ * "fs.azure.custom.token.cache.provider", and stored in all the backends.
+ */
+public class CachedAccessTokenProvider implements AzureADTokenProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachedAccessTokenProvider.class);
+
+    public static final int TEN_MINUTES = 10 * 60 * 1000;
+
+    public static final String AZURE_CUSTOM_TOKEN_CACHE_PROVIDER = "fs.azure.custom.token.cache.provider";
+    public static final String AZURE_CUSTOM_TOKEN_CACHE_BACKENDS = "fs.azure.custom.token.cache.backends";
+    public static final String AZURE_CUSTOM_TOKEN_CACHE_DELETE_ON_EXIT = "fs.azure.custom.token.cache.delete.on.exit";
+    public static final String AZURE_CUSTOM_TOKEN_REFRESH_POLICY = "fs.azure.custom.token.refresh.policy";
+
+    public static final String AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_ENABLED = "fs.azure.custom.token.background.refresh.enabled";
+    public static final String AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_LIFETIME_FRACTION = "fs.azure.custom.token.background.refresh.lifetime.fraction";
+    public static final String AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_JITTER_FRACTION = "fs.azure.custom.token.background.refresh.jitter.fraction";
+    public static final float DEFAULT_BACKGROUND_REFRESH_LIFETIME_FRACTION = 0.75f;
+    public static final float DEFAULT_BACKGROUND_REFRESH_JITTER_FRACTION = 0.05f;
+
+    // wait before retrying a failed background refresh, while the current token is still valid
+    private static final long BACKGROUND_REFRESH_RETRY_INTERVAL = 60 * 1000;
+
+    // token shared by all the providers of the same identity in the JVM
+    private TokenRegistry.Entry sharedToken;
+
+    private List<TokenCacheBackend> backends;
+
+    private CustomTokenProviderAdaptee impl;
+
+    private TokenProviderMetrics metrics;
+
+    // refreshes are logged at most once per interval
+    private RateLimitedLog refreshLog;
+
+    private RefreshPolicy refreshPolicy;
+
+    private boolean backgroundRefresh;
+
+    // initialize fetches tokens and reads the backends, a ReentrantLock doesn't pin a virtual thread while it does
+    private final ReentrantLock initializeLock = new ReentrantLock();
+
+    /**
+     * @return the provider the tokens are fetched from.
+     */
+    protected CustomTokenProviderAdaptee getImpl() {
+        return impl;
+    }
+
+    /**
+     * The backends used when "fs.azure.custom.token.cache.backends" is not set.
+     */
+    protected List<Class<? extends TokenCacheBackend>> getDefaultBackends(Configuration configuration) {
+        return Collections.<Class<? extends TokenCacheBackend>>singletonList(LocalFileTokenCacheBackend.class);
+    }
+
+    @Override
+    public String getAccessToken() throws IOException {
+        return getCachedToken().getToken();
+    }
+
+    @Override
+    public AzureADToken getAzureADToken() throws IOException {
+        return getCachedToken().toAzureADToken();
+    }
+
+    @Override
+    public CompletableFuture<AzureADToken> getAzureADTokenAsync(Executor executor) {
+        CachedToken current = this.sharedToken.getToken();
+        if (current != null && !isTokenExpiring(current)) {
+            return CompletableFuture.completedFuture(current.toAzureADToken());
+        }
+        return AzureADTokenProvider.super.getAzureADTokenAsync(executor);
+    }
+
+    /**
+     * Drops the token from memory and from all the backends, for example after it was rejected.
+     */
+    public void invalidateCachedToken() throws IOException {
+        ReentrantLock refreshLock = sharedToken.getRefreshLock();
+        refreshLock.lock();
+        try {
+            sharedToken.setToken(null);
+            for (TokenCacheBackend backend : backends) {
+                backend.invalidate();
+            }
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private CachedToken getCachedToken() throws IOException {
+        // fast path, a valid token in memory is returned without any storage access or lock
+        TokenRegistry.Entry entry = this.sharedToken;
+        entry.touch();
+        CachedToken current = entry.getToken();
+        if (current != null && !isTokenExpiring(current)) {
+            metrics.incrMemoryHits();
+            return current;
+        }
+        return refreshAccessToken(entry, current);
+    }
+
+    private CachedToken refreshAccessToken(TokenRegistry.Entry entry, CachedToken observed) throws IOException {
+        ReentrantLock refreshLock = entry.getRefreshLock();
+        if (observed != null && !observed.isExpired()) {
+            // the token is expiring but still valid, keep using it if another thread is already refreshing
+            if (!refreshLock.tryLock()) {
+                LOG.debug("Token is being refreshed by another thread, return the existing token.");
+                metrics.incrMemoryHits();
+                return observed;
+            }
+        } else {
+            long start = System.nanoTime();
+            refreshLock.lock();
+            metrics.addLockWait(start);
+        }
+        try {
+            // another thread may have refreshed the token while we were waiting for the lock
+            CachedToken current = entry.getToken();
+            if (current != null && !isTokenExpiring(current)) {
+                metrics.incrMemoryHits();
+                LOG.debug("return token refreshed by another thread, expiry time {}", current.getExpiryTime());
+                return current;
+            }
+            // a token fetched moments ago may already be expiring, keep using it rather than fetching again at once
+            if (current != null && !current.isExpired()
+                    && System.currentTimeMillis() - entry.getLastFetchTime() < refreshPolicy.getMinFetchInterval()) {
+                metrics.incrMemoryHits();
+                return current;
+            }
+            return loadOrFetchAccessToken(entry, null);
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private void refreshInBackground(TokenRegistry.Entry entry) {
+        ReentrantLock refreshLock = entry.getRefreshLock();
+        refreshLock.lock();
+        try {
+            CachedToken current = entry.getToken();
+            long sinceLastFetch = System.currentTimeMillis() - entry.getLastFetchTime();
+            if (current != null && !current.isExpired() && sinceLastFetch < refreshPolicy.getMinFetchInterval()) {
+                LOG.debug("Token was fetched {} ms ago, the background refresh is postponed.", sinceLastFetch);
+                scheduleBackgroundRefresh(entry, refreshPolicy.getMinFetchInterval() - sinceLastFetch);
+                return;
+            }
+            LOG.debug("Refreshing token in background.");
+            try {
+                loadOrFetchAccessToken(entry, current);
+            } catch (Exception e) {
+                LOG.error("Failed to refresh token in background. Version: " + Version.VERSION, e);
+                if (current != null && !current.isExpired()) {
+                    scheduleBackgroundRefresh(entry, BACKGROUND_REFRESH_RETRY_INTERVAL);
+                }
+            }
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Loads the token from the backends, or fetches it. Must be called with the refresh lock held.
+     * @param replaced the token being refreshed in background, a cached token is only used if it expires later.
+     */
+    private CachedToken loadOrFetchAccessToken(TokenRegistry.Entry entry, CachedToken replaced) throws IOException {
+        CachedToken cached = loadAccessTokenFromCache(replaced);
+        if (cached != null) {
+            metrics.incrCacheHits();
+            publishToken(entry, cached);
+            return cached;
+        }
+        metrics.incrCacheMisses();
+
+        // only one process sharing the backends fetches the token, the others wait for it
+        Closeable lock = lockBackends();
+        try {
+            if (lock != null) {
+                cached = loadAccessTokenFromCache(replaced);
+                if (cached != null) {
+                    publishToken(entry, cached);
+                    return cached;
+                }
+            }
+            return fetchAccessToken(entry);
+        } finally {
+            if (lock != null) {
+                lock.close();
+            }
+        }
+    }
+
+    /**
+     * Looks up the backends in order, a valid token found is copied to the backends before the one it was found in.
+     */
+    private CachedToken loadAccessTokenFromCache(CachedToken replaced) {
+        for (int i = 0; i < backends.size(); i++) {
+            TokenCacheBackend backend = backends.get(i);
+            CachedToken cached;
+            try {
+                cached = CachedToken.from(backend.lookup());
+            } catch (Exception e) {
+                LOG.error("Error occurred when try load token from " + backend.getClass().getSimpleName() + ". The error can be ignored.", e);
+                continue;
+            }
+            if (cached == null) {
+                continue;
+            }
+            if (cached.getToken() == null || cached.getToken().trim().length() == 0) {
+                LOG.error("Invalid token in " + backend.getClass().getSimpleName() + ", token length is zero!");
+            } else if (!isTokenExpiring(cached) && (replaced == null || cached.getExpiryTime() > replaced.getExpiryTime())) {
+                refreshLog.info("Getting access token from {} successfully, expiry time: {}.",
+                        backend.getClass().getSimpleName(), new Date(cached.getExpiryTime()));
+                storeAccessToken(cached, i);
+                return cached;
+            }
+        }
+        return null;
+    }
+
+    private CachedToken fetchAccessToken(TokenRegistry.Entry entry) throws IOException {
+        LOG.debug("Start to get token from Azure AD.");
+        CachedToken fetched;
+        entry.setLastFetchTime(System.currentTimeMillis());
+        try {
+            fetched = CachedToken.fetch(getImpl());
+        } catch (Exception e) {
+            LOG.error("Failed to get token from Azure AD. Version: " + Version.VERSION);
+            LOG.debug("Failed to get token from Azure AD.", e);
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else {
+                throw new IOException("Unknown exception occurred!", e);
+            }
+        }
+        if (fetched.getToken() == null || fetched.getToken().trim().length() == 0) {
+            String msg = "Invalid Token!, token is null or zero length!";
+            LOG.error(msg);
+            throw new IOException(msg);
+        }
+        publishToken(entry, fetched);
+        storeAccessToken(fetched, backends.size());
+        refreshLog.info("Getting access token from Azure AD successfully, expiry time: {}. Version: {}",
+                new Date(fetched.getExpiryTime()), Version.VERSION);
+        return fetched;
+    }
+
+    /**
+     * Stores the token in the backends before the given index.
+     */
+    private void storeAccessToken(CachedToken token, int count) {
+        for (int i = 0; i < count; i++) {
+            TokenCacheBackend backend = backends.get(i);
+            try {
+                backend.store(token.toAzureADToken());
+                LOG.debug("Token is written to {}", backend.getClass().getSimpleName());
+            } catch (Exception e) {
+                metrics.incrCacheWriteFailures();
+                LOG.error("Failed to write token to " + backend.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    /**
+     * Locks the backends in order, e.g. the node then the cluster, so that one JVM per node competes for the cluster lock.
+     * @return the locks taken, or null if no backend supports it.
+     */
+    private Closeable lockBackends() {
+        final List<Closeable> locks = new ArrayList<>();
+        for (TokenCacheBackend backend : backends) {
+            try {
+                Closeable lock = backend.lock();
+                if (lock != null) {
+                    locks.add(lock);
+                }
+            } catch (IOException e) {
+                LOG.error("Failed to lock " + backend.getClass().getSimpleName() + ", the token is fetched without it.", e);
+            }
+        }
+        if (locks.isEmpty()) {
+            return null;
+        }
+        return new Closeable() {
+            @Override
+            public void close() throws IOException {
+                IOException failure = null;
+                for (int i = locks.size() - 1; i >= 0; i--) {
+                    try {
+                        locks.get(i).close();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        };
+    }
+
+    private void publishToken(TokenRegistry.Entry entry, CachedToken token) {
+        entry.setToken(token);
+        if (backgroundRefresh) {
+            scheduleBackgroundRefresh(entry, refreshPolicy.getRefreshDelay(token.getExpiryTime()));
+        }
+    }
+
+    /**
+     * The delay is at least the minimum fetch interval, whatever the refresh policy returns.
+     */
+    private void scheduleBackgroundRefresh(TokenRegistry.Entry entry, long delayMillis) {
+        delayMillis = Math.max(delayMillis, refreshPolicy.getMinFetchInterval());
+        entry.setBackgroundRefreshTask(TokenRefreshScheduler.schedule(new BackgroundRefreshTask(this, entry), delayMillis));
+        LOG.debug("Token will be refreshed in background in {} sec.", delayMillis / 1000);
+    }
+
+    /**
+     * Only holds weak references, so that a scheduled refresh doesn't keep an unused provider alive.
+     * The entry is shared, once the provider which scheduled the refresh is collected it is run by another provider
+     * of the entry, and it stops when none of them is alive.
+     */
+    private static class BackgroundRefreshTask implements Runnable {
+
+        private final WeakReference<CachedAccessTokenProvider> provider;
+
+        private final TokenRegistry.Entry entry;
+
+        BackgroundRefreshTask(CachedAccessTokenProvider provider, TokenRegistry.Entry entry) {
+            this.provider = new WeakReference<>(provider);
+            this.entry = entry;
+        }
+
+        @Override
+        public void run() {
+            CachedAccessTokenProvider target = provider.get();
+            if (target == null) {
+                target = entry.getProvider();
+            }
+            if (target != null) {
+                target.refreshInBackground(entry);
+            } else {
+                LOG.debug("No provider of the token is alive, the background refresh is stopped.");
+            }
+        }
+    }
+
+    @Override
+    public Date getExpiryTime() {
+        CachedToken current = this.sharedToken == null ? null : this.sharedToken.getToken();
+        return new Date(current == null ? 0 : current.getExpiryTime());
+    }
+
+    private boolean isTokenExpiring(CachedToken token) {
+        return refreshPolicy.isExpiring(token.getExpiryTime());
+    }
+
+    /**
+     * @return a new instance of the provider configured by "fs.azure.custom.token.cache.provider", not initialized.
+     */
+    static CustomTokenProviderAdaptee newProvider(Configuration configuration) {
+        return ReflectionUtils.newInstance(configuration.getClass(AZURE_CUSTOM_TOKEN_CACHE_PROVIDER,
+                MSIBasedAccessTokenProvider.class, CustomTokenProviderAdaptee.class), configuration);
+    }
+
+    /**
+     * @return the initialized policy configured by "fs.azure.custom.token.refresh.policy".
+     */
+    static RefreshPolicy newRefreshPolicy(Configuration configuration) {
+        RefreshPolicy policy = ReflectionUtils.newInstance(configuration.getClass(AZURE_CUSTOM_TOKEN_REFRESH_POLICY,
+                DefaultRefreshPolicy.class, RefreshPolicy.class), configuration);
+        policy.initialize(configuration);
+        return policy;
+    }
+
+    @Override
+    public void initialize(Configuration configuration, String accountName) throws IOException {
+        initializeLock.lock();
+        try {
+            if (getImpl() == null) {
+                this.impl = newProvider(configuration);
+            }
+            getImpl().initialize(configuration, accountName);
+            String identityKey = TokenRegistry.getIdentityKey(configuration, getImpl());
+            this.sharedToken = TokenRegistry.getEntry(identityKey, configuration);
+            this.sharedToken.addProvider(this);
+            this.metrics = TokenProviderMetrics.get(configuration);
+            this.refreshLog = new RateLimitedLog(LOG, configuration);
+            this.refreshPolicy = newRefreshPolicy(configuration);
+            this.backgroundRefresh = configuration.getBoolean(AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_ENABLED, false);
+
+            List<TokenCacheBackend> configured = new ArrayList<>();
+            if (configuration.get(AZURE_CUSTOM_TOKEN_CACHE_BACKENDS) != null) {
+                configured.addAll(configuration.getInstances(AZURE_CUSTOM_TOKEN_CACHE_BACKENDS, TokenCacheBackend.class));
+            } else {
+                for (Class<? extends TokenCacheBackend> backendClass : getDefaultBackends(configuration)) {
+                    configured.add(ReflectionUtils.newInstance(backendClass, configuration));
+                }
+            }
+            List<TokenCacheBackend> created = new ArrayList<>();
+            for (TokenCacheBackend backend : configured) {
+                try {
+                    backend.initialize(configuration, identityKey);
+                    created.add(backend);
+                    TokenCacheJanitor.schedule(backend, identityKey, configuration);
+                } catch (IOException e) {
+                    LOG.error("Failed to initialize " + backend.getClass().getSimpleName() + ", it is not used.", e);
+                }
+            }
+            this.backends = created;
+
+            TokenPrefetcher.prefetchConfigured(getClass(), configuration, accountName);
+        } finally {
+            initializeLock.unlock();
+        }
+    }
+}
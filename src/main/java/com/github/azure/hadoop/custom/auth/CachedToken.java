@@ -0,0 +1,66 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.fs.azurebfs.extensions.CustomTokenProviderAdaptee;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Immutable snapshot of an access token and its expiry time, so that readers can get both with a single volatile read.
+ */
+final class CachedToken {
+
+    private final String token;
+
+    private final long expiryTime;
+
+    CachedToken(String token, long expiryTime) {
+        this.token = token;
+        this.expiryTime = expiryTime;
+    }
+
+    /**
+     * Fetches a token from the provider, with the expiry time it actually carries when the provider can return it.
+     */
+    static CachedToken fetch(CustomTokenProviderAdaptee provider) throws IOException {
+        if (provider instanceof AzureADTokenProvider) {
+            return from(((AzureADTokenProvider) provider).getAzureADToken());
+        }
+        String token = provider.getAccessToken();
+        return new CachedToken(token, provider.getExpiryTime().getTime());
+    }
+
+    /**
+     * @return the snapshot of the token, or null if it is null or has no expiry time.
+     */
+    static CachedToken from(AzureADToken token) {
+        if (token == null || token.getExpiry() == null) {
+            return null;
+        }
+        return new CachedToken(token.getAccessToken(), token.getExpiry().getTime());
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    long getExpiryTime() {
+        return expiryTime;
+    }
+
+    AzureADToken toAzureADToken() {
+        AzureADToken azureADToken = new AzureADToken();
+        azureADToken.setAccessToken(token);
+        azureADToken.setExpiry(new Date(expiryTime));
+        return azureADToken;
+    }
+
+    boolean isExpiringWithin(long window) {
+        return expiryTime <= System.currentTimeMillis() + window;
+    }
+
+    boolean isExpired() {
+        return isExpiringWithin(0);
+    }
+}
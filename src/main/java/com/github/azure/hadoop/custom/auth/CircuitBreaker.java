@@ -0,0 +1,201 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADAuthenticator;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Circuit breaker around the requests to an Azure AD or IMDS endpoint, shared by all the providers of the JVM.
+ * After too many consecutive failures it opens and requests fail fast, then after the recovery interval
+ * a single probe request is let through: the breaker closes if it succeeds and opens again if it fails.
+ * Only the failures of the endpoint itself are counted: throttling, server errors and I/O errors. A client error,
+ * such as an unknown managed identity, tells nothing about the endpoint shared by the other identities.
+ */
+final class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public static final String AZURE_CUSTOM_TOKEN_CIRCUIT_BREAKER_ENABLED = "fs.azure.custom.token.circuit.breaker.enabled";
+    public static final String AZURE_CUSTOM_TOKEN_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "fs.azure.custom.token.circuit.breaker.failure.threshold";
+    public static final String AZURE_CUSTOM_TOKEN_CIRCUIT_BREAKER_RECOVERY_INTERVAL = "fs.azure.custom.token.circuit.breaker.recovery.interval";
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_CIRCUIT_BREAKER_RECOVERY_INTERVAL = 30 * 1000;
+
+    private static final CircuitBreaker DISABLED = new CircuitBreaker("disabled", 0, 0, false);
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String endpoint;
+
+    private final boolean enabled;
+
+    private final int failureThreshold;
+
+    private final long recoveryInterval;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures;
+
+    private long openUntil;
+
+    private long probeStartTime;
+
+    private CircuitBreaker(String endpoint, int failureThreshold, long recoveryInterval, boolean enabled) {
+        this.endpoint = endpoint;
+        this.enabled = enabled;
+        this.failureThreshold = failureThreshold;
+        this.recoveryInterval = recoveryInterval;
+    }
+
+    /**
+     * Returns the breaker of the endpoint, or a breaker which never opens if it is disabled.
+     * The thresholds are taken from the configuration of the first provider of the endpoint.
+     */
+    static CircuitBreaker get(Configuration configuration, String endpoint) {
+        if (!configuration.getBoolean(AZURE_CUSTOM_TOKEN_CIRCUIT_BREAKER_ENABLED, false)) {
+            return DISABLED;
+        }
+        CircuitBreaker breaker = BREAKERS.get(endpoint);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(endpoint,
+                    configuration.getInt(AZURE_CUSTOM_TOKEN_CIRCUIT_BREAKER_FAILURE_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD),
+                    configuration.getLong(AZURE_CUSTOM_TOKEN_CIRCUIT_BREAKER_RECOVERY_INTERVAL, DEFAULT_CIRCUIT_BREAKER_RECOVERY_INTERVAL),
+                    true);
+            breaker = BREAKERS.putIfAbsent(endpoint, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * @return true if a request can be sent, it must be followed by {@link #onSuccess()} or {@link #onFailure(Throwable)}.
+     */
+    boolean tryAcquire() {
+        if (!enabled) {
+            return true;
+        }
+        lock.lock();
+        try {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.currentTimeMillis() >= openUntil) {
+                        state = State.HALF_OPEN;
+                        probeStartTime = System.currentTimeMillis();
+                        LOG.info("Circuit breaker of " + endpoint + " is half open, sending a probe request.");
+                        return true;
+                    }
+                    return false;
+                default: // a probe request is in flight, unless it never reported back
+                    if (System.currentTimeMillis() >= probeStartTime + recoveryInterval) {
+                        probeStartTime = System.currentTimeMillis();
+                        LOG.info("Probe request of " + endpoint + " timed out, sending another one.");
+                        return true;
+                    }
+                    return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void onSuccess() {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (state != State.CLOSED) {
+                LOG.info("Circuit breaker of " + endpoint + " is closed.");
+            }
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts the failure if it comes from the endpoint, otherwise only lets the next probe through.
+     */
+    void onFailure(Throwable failure) {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (!isEndpointFailure(failure)) {
+                if (state == State.HALF_OPEN) {
+                    state = State.OPEN;
+                    openUntil = System.currentTimeMillis();
+                }
+                return;
+            }
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+                state = State.OPEN;
+                openUntil = System.currentTimeMillis() + recoveryInterval;
+                LOG.error("Circuit breaker of " + endpoint + " is open after " + consecutiveFailures
+                        + " consecutive failures, requests fail fast for " + recoveryInterval / 1000 + " sec.");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true for HTTP 408, 429 and 5xx, and for the I/O errors without HTTP status.
+     */
+    static boolean isEndpointFailure(Throwable failure) {
+        if (!(failure instanceof IOException)) {
+            return false;
+        }
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AzureADAuthenticator.HttpException) {
+                int status = ((AzureADAuthenticator.HttpException) cause).getHttpErrorCode();
+                return status == 408 || status == 429 || status >= 500;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called instead of a request while the breaker is open: serves the last known good token
+     * as long as it has not actually expired, otherwise fails fast.
+     */
+    AzureADToken failFast(AzureADToken lastKnownGoodToken) throws IOException {
+        if (lastKnownGoodToken != null && lastKnownGoodToken.getExpiry().getTime() > System.currentTimeMillis()) {
+            LOG.debug("Circuit breaker of {} is open, return the last known good token.", endpoint);
+            return lastKnownGoodToken;
+        }
+        throw new IOException("Circuit breaker of " + endpoint + " is open, failing fast without requesting a token.");
+    }
+
+    State getState() {
+        lock.lock();
+        try {
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String getEndpoint() {
+        return endpoint;
+    }
+}
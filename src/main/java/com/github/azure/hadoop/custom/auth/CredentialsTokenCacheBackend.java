@@ -0,0 +1,95 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.azurebfs.extensions.CustomTokenProviderAdaptee;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.security.Credentials;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.security.token.TokenIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Reads the tokens from the credentials of the current user, where the driver or the client added them with
+ * {@link #addToken}, so that the executors get their tokens from memory without any remote storage access.
+ * The credentials are read only, a token fetched by the executors is only stored in the other backends.
+ */
+public class CredentialsTokenCacheBackend implements TokenCacheBackend {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CredentialsTokenCacheBackend.class);
+
+    private Text alias;
+
+    @Override
+    public void initialize(Configuration configuration, String identityKey) {
+        this.alias = new Text(identityKey);
+    }
+
+    @Override
+    public AzureADToken lookup() throws IOException {
+        // the credentials are read on each lookup, they may have been updated since the last one
+        Token<? extends TokenIdentifier> token = UserGroupInformation.getCurrentUser().getCredentials().getToken(alias);
+        if (token == null) {
+            LOG.debug("No Azure AD token in the credentials for {}", alias);
+            return null;
+        }
+        AzureADTokenIdentifier identifier = AzureADTokenIdentifier.decode(token);
+        return new CachedToken(new String(token.getPassword(), StandardCharsets.UTF_8), identifier.getExpiryTime()).toAzureADToken();
+    }
+
+    @Override
+    public void store(AzureADToken token) {
+        // read only
+    }
+
+    @Override
+    public void invalidate() {
+        // read only
+    }
+
+    @Override
+    public int compact(int maxFiles) {
+        // the credentials are managed by Hadoop
+        return 0;
+    }
+
+    /**
+     * Fetches a token from the provider configured by "fs.azure.custom.token.cache.provider" and adds it to the credentials,
+     * where the cached providers of the same identity find it when this backend is configured.
+     * @param renewer the user allowed to renew the token, may be null.
+     */
+    public static Token<AzureADTokenIdentifier> addToken(Credentials credentials, Configuration configuration,
+                                                         String accountName, String renewer) throws IOException {
+        CustomTokenProviderAdaptee impl = CachedAccessTokenProvider.newProvider(configuration);
+        impl.initialize(configuration, accountName);
+        String identityKey = TokenRegistry.getIdentityKey(configuration, impl);
+        CachedToken fetched = CachedToken.fetch(impl);
+        Token<AzureADTokenIdentifier> token = new AzureADTokenIdentifier(UserGroupInformation.getCurrentUser().getUserName(),
+                renewer, identityKey, fetched.getExpiryTime()).toToken(fetched);
+        credentials.addToken(token.getService(), token);
+        LOG.debug("Azure AD token of {} added to the credentials, expiry time {}", identityKey, new Date(fetched.getExpiryTime()));
+        return token;
+    }
+
+    /**
+     * Writes a token storage file holding the token of the configured identity, to be passed to the executors,
+     * for example with "HADOOP_TOKEN_FILE_LOCATION".
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: CredentialsTokenCacheBackend <token file> [renewer]");
+            System.exit(1);
+        }
+        Configuration conf = new Configuration();
+        Credentials credentials = new Credentials();
+        addToken(credentials, conf, null, args.length > 1 ? args[1] : null);
+        credentials.writeTokenStorageFile(new Path(args[0]), conf);
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.github.azure.hadoop.custom.auth.CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_JITTER_FRACTION;
+import static com.github.azure.hadoop.custom.auth.CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_LIFETIME_FRACTION;
+import static com.github.azure.hadoop.custom.auth.CachedAccessTokenProvider.DEFAULT_BACKGROUND_REFRESH_JITTER_FRACTION;
+import static com.github.azure.hadoop.custom.auth.CachedAccessTokenProvider.DEFAULT_BACKGROUND_REFRESH_LIFETIME_FRACTION;
+
+/**
+ * Refreshes a token when it expires within the clock skew, plus a random jitter chosen once per JVM,
+ * so that the JVMs of a cluster started together don't refresh in the same second.
+ * In background the token is refreshed at a fraction of its remaining lifetime, moved by a random jitter.
+ */
+public class DefaultRefreshPolicy implements RefreshPolicy {
+
+    public static final String AZURE_CUSTOM_TOKEN_REFRESH_SKEW = "fs.azure.custom.token.refresh.skew";
+    public static final String AZURE_CUSTOM_TOKEN_REFRESH_JITTER = "fs.azure.custom.token.refresh.jitter";
+    public static final String AZURE_CUSTOM_TOKEN_REFRESH_MIN_INTERVAL = "fs.azure.custom.token.refresh.min.interval";
+    public static final long DEFAULT_REFRESH_SKEW = CachedAccessTokenProvider.TEN_MINUTES;
+    public static final long DEFAULT_REFRESH_JITTER = 60 * 1000;
+    public static final long DEFAULT_REFRESH_MIN_INTERVAL = 30 * 1000;
+
+    // position of this JVM in the jitter window, the same for all the providers of the JVM
+    private static final double JVM_JITTER = new SecureRandom().nextDouble();
+
+    private long expiringWindow;
+    private long minFetchInterval;
+    private double lifetimeFraction;
+    private double jitterFraction;
+
+    @Override
+    public void initialize(Configuration configuration) {
+        long skew = Math.max(0, configuration.getLong(AZURE_CUSTOM_TOKEN_REFRESH_SKEW, DEFAULT_REFRESH_SKEW));
+        long jitter = Math.max(0, configuration.getLong(AZURE_CUSTOM_TOKEN_REFRESH_JITTER, DEFAULT_REFRESH_JITTER));
+        this.expiringWindow = skew + Math.round(jitter * JVM_JITTER);
+        this.minFetchInterval = Math.max(0, configuration.getLong(AZURE_CUSTOM_TOKEN_REFRESH_MIN_INTERVAL, DEFAULT_REFRESH_MIN_INTERVAL));
+        this.lifetimeFraction = configuration.getFloat(AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_LIFETIME_FRACTION,
+                DEFAULT_BACKGROUND_REFRESH_LIFETIME_FRACTION);
+        this.jitterFraction = configuration.getFloat(AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_JITTER_FRACTION,
+                DEFAULT_BACKGROUND_REFRESH_JITTER_FRACTION);
+    }
+
+    @Override
+    public boolean isExpiring(long expiryTime) {
+        return expiryTime <= System.currentTimeMillis() + expiringWindow;
+    }
+
+    /**
+     * The refresh never happens later than the expiring window, where foreground callers would refresh it,
+     * nor sooner than the minimum fetch interval, so that a token returned already expiring is not refetched in a loop.
+     */
+    @Override
+    public long getRefreshDelay(long expiryTime) {
+        long lifetime = expiryTime - System.currentTimeMillis();
+        if (lifetime <= 0) {
+            return minFetchInterval;
+        }
+        double jitter = jitterFraction > 0 ? ThreadLocalRandom.current().nextDouble(-jitterFraction, jitterFraction) : 0;
+        long delay = Math.round(lifetime * (lifetimeFraction + jitter));
+        return Math.max(minFetchInterval, Math.min(delay, lifetime - expiringWindow));
+    }
+
+    @Override
+    public long getMinFetchInterval() {
+        return minFetchInterval;
+    }
+}
@@ -0,0 +1,453 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathIsNotEmptyDirectoryException;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Keeps the tokens in a Hadoop file system, usually HDFS, shared by all the JVMs of the cluster:
+ * {@code <cache path>/MSITokenCache/<identity hash>/latest.token} holds the {@link TokenRecord} of the identity, so that
+ * the identities sharing a client id, with another tenant or endpoint, don't overwrite each other's token.
+ * While a token is fetched, the JVM fetching it holds the lease file {@code latest.lease} of the identity, created
+ * atomically with a random owner id, and the other JVMs of the cluster wait for the token it stores. If it fails to
+ * store one, the lease goes to the first waiter creating it again.
+ * The file system is the one of the cache path, so a path with a scheme and an authority selects the cluster,
+ * and its handle is shared with the rest of the JVM through the {@link FileSystem} cache.
+ * A lookup costs a single open call to the name node, and a store a create and a rename.
+ */
+public class HadoopFileSystemTokenCacheBackend implements TokenCacheBackend {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HadoopFileSystemTokenCacheBackend.class);
+
+    public static final String AZURE_CUSTOM_TOKEN_HDFS_CACHE_PATH = "fs.azure.custom.token.hdfs.cache.path";
+    public static final String AZURE_CUSTOM_TOKEN_HDFS_LEASE_ENABLED = "fs.azure.custom.token.hdfs.lease.enabled";
+    public static final String AZURE_CUSTOM_TOKEN_HDFS_LEASE_WAIT = "fs.azure.custom.token.hdfs.lease.wait";
+    public static final String AZURE_CUSTOM_TOKEN_HDFS_LEASE_POLL_INTERVAL = "fs.azure.custom.token.hdfs.lease.poll.interval";
+    public static final String AZURE_CUSTOM_TOKEN_HDFS_LEASE_TIMEOUT = "fs.azure.custom.token.hdfs.lease.timeout";
+    public static final long DEFAULT_HDFS_LEASE_WAIT = 30 * 1000;
+    public static final long DEFAULT_HDFS_LEASE_POLL_INTERVAL = 500;
+    // longer than a fetch with all its retries, each of them waiting up to 30 seconds
+    public static final long DEFAULT_HDFS_LEASE_TIMEOUT = 10 * 60 * 1000;
+
+    private static final String DEFAULT_HDFS_CACHE_PATH = "/tmp/.azure/";
+
+    // name of the file holding the latest token of an identity
+    private static final String LATEST_TOKEN_FILE = "latest.token";
+    private static final String LEASE_FILE = "latest.lease";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    // temporary files older than this are left by failed writes
+    private static final long TEMP_FILE_MAX_AGE = 3600 * 1000;
+    // an Azure AD token lives at most 24 hours, a token file not written since is expired
+    private static final long MAX_TOKEN_LIFETIME = 24 * 3600 * 1000L;
+    private static final String JANITOR_MARKER_PREFIX = ".janitor.";
+
+    // returned when another JVM released the lease, the token it stored is looked up again
+    private static final Closeable NO_LOCK = new Closeable() {
+        @Override
+        public void close() {
+        }
+    };
+
+    // UUID of the temporary token files
+    private final String tokenFileUUID = UUID.randomUUID().toString();
+
+    private FileSystem fs;
+    private Path tokenCacheFolder;
+    private boolean deleteOnExit;
+
+    // FileSystem.deleteOnExit checks that the file exists, it is registered once
+    private volatile boolean deleteOnExitRegistered;
+
+    private long identityHash;
+
+    private TokenEncryption encryption;
+
+    private boolean leaseEnabled;
+    private long leaseWait;
+    private long leasePollInterval;
+    private long leaseTimeout;
+
+    @Override
+    public void initialize(Configuration configuration, String identityKey) throws IOException {
+        this.deleteOnExit = configuration.getBoolean(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_CACHE_DELETE_ON_EXIT, false);
+        this.identityHash = MappedTokenCache.getIdentityHash(identityKey);
+        this.encryption = TokenEncryption.get(configuration);
+        this.leaseEnabled = configuration.getBoolean(AZURE_CUSTOM_TOKEN_HDFS_LEASE_ENABLED, true);
+        this.leaseWait = configuration.getLong(AZURE_CUSTOM_TOKEN_HDFS_LEASE_WAIT, DEFAULT_HDFS_LEASE_WAIT);
+        this.leasePollInterval = Math.max(1, configuration.getLong(AZURE_CUSTOM_TOKEN_HDFS_LEASE_POLL_INTERVAL,
+                DEFAULT_HDFS_LEASE_POLL_INTERVAL));
+        this.leaseTimeout = configuration.getLong(AZURE_CUSTOM_TOKEN_HDFS_LEASE_TIMEOUT, DEFAULT_HDFS_LEASE_TIMEOUT);
+        // get the root folder of cache folder
+        String hdfsRootPath = configuration.get(AZURE_CUSTOM_TOKEN_HDFS_CACHE_PATH);
+        if (hdfsRootPath == null) {
+            hdfsRootPath = DEFAULT_HDFS_CACHE_PATH;
+            LOG.info("HDFS token cache folder is not set. Using default path: " + hdfsRootPath);
+        }
+        // tokens are cached per identity, the folder is shared by all the storage accounts
+        this.tokenCacheFolder = new Path(hdfsRootPath + "/MSITokenCache/" + Long.toHexString(identityHash));
+        this.fs = tokenCacheFolder.getFileSystem(configuration);
+    }
+
+    /**
+     * Reads the token record of the identity, the header is checked before the token is read.
+     */
+    @Override
+    public AzureADToken lookup() throws IOException {
+        Path latestTokenFile = new Path(tokenCacheFolder, LATEST_TOKEN_FILE);
+        LOG.debug("Start getting access token from HDFS cache {}", latestTokenFile);
+        FSDataInputStream inputStream;
+        try {
+            inputStream = fs.open(latestTokenFile);
+        } catch (FileNotFoundException e) {
+            LOG.debug("Cannot found cached token in {}", tokenCacheFolder);
+            return null;
+        }
+        try {
+            TokenRecord.Header header = TokenRecord.readHeader(inputStream);
+            if (header == null) {
+                LOG.error("Invalid token file " + latestTokenFile + ", it is not a token record.");
+                return null;
+            }
+            if (header.getIdentityHash() != identityHash || header.getExpiryTime() <= System.currentTimeMillis()) {
+                LOG.debug("Token record {} is expired or of another identity.", latestTokenFile);
+                return null;
+            }
+            return TokenRecord.readToken(inputStream, header, encryption).toAzureADToken();
+        } catch (EOFException e) {
+            LOG.error("Invalid token file " + latestTokenFile + ", it is truncated.");
+            return null;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                LOG.error("Failed to close input stream", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the token to a temporary file, then renames it to the latest token file of the identity,
+     * so that readers never see a partially written token. The folder of the identity is created with the file.
+     */
+    @Override
+    public void store(AzureADToken token) throws IOException {
+        Path latestTokenFile = new Path(tokenCacheFolder, LATEST_TOKEN_FILE);
+        Path tempTokenFile = new Path(tokenCacheFolder, LATEST_TOKEN_FILE + "." + tokenFileUUID + TEMP_FILE_SUFFIX);
+
+        FSDataOutputStream out = null;
+        try {
+            out = fs.create(tempTokenFile, true);
+            out.write(TokenRecord.encode(identityHash, CachedToken.from(token), encryption));
+            out.flush();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    LOG.error("Failed to close output stream", e);
+                }
+            }
+        }
+
+        try {
+            renameOverwrite(tempTokenFile, latestTokenFile);
+            LOG.debug("Token has been written to cache. file path: {}", latestTokenFile);
+        } catch (IOException e) {
+            LOG.error("Failed to rename token file " + tempTokenFile + " to " + latestTokenFile, e);
+            fs.delete(tempTokenFile, false);
+            throw e;
+        } finally {
+            if (deleteOnExit && !deleteOnExitRegistered) {
+                deleteOnExitRegistered = fs.deleteOnExit(latestTokenFile);
+            }
+        }
+    }
+
+    /**
+     * HDFS replaces the destination in a single call. The other file systems replace it on rename, like the local
+     * one, or the destination is deleted first.
+     */
+    private void renameOverwrite(Path source, Path destination) throws IOException {
+        if (fs instanceof DistributedFileSystem) {
+            ((DistributedFileSystem) fs).rename(source, destination, Options.Rename.OVERWRITE);
+            return;
+        }
+        if (!fs.rename(source, destination)) {
+            fs.delete(destination, false);
+            if (!fs.rename(source, destination)) {
+                throw new IOException("Rename returned false");
+            }
+        }
+    }
+
+    @Override
+    public void invalidate() throws IOException {
+        fs.delete(new Path(tokenCacheFolder, LATEST_TOKEN_FILE), false);
+    }
+
+    /**
+     * Creates the lease file of the identity, which fails if another JVM holds it. In that case waits until
+     * the other JVM deletes it: if it stored a token meanwhile, returns without holding the lease so that the token
+     * is looked up again, otherwise tries to take the lease, so that a single waiter fetches the token.
+     * A lease older than the timeout is left by a JVM which died, it is taken over.
+     * @return the lease to close, or null if the wait timed out and the token must be fetched without it.
+     */
+    @Override
+    public Closeable lock() throws IOException {
+        if (!leaseEnabled) {
+            return null;
+        }
+        final Path leaseFile = new Path(tokenCacheFolder, LEASE_FILE);
+        final String owner = UUID.randomUUID().toString();
+        long start = System.currentTimeMillis();
+        long deadline = start + leaseWait;
+        boolean waited = false;
+        while (true) {
+            // checked before creating the lease, which succeeds as soon as the holder released it
+            if (waited && isTokenStoredSince(start)) {
+                return NO_LOCK;
+            }
+            try {
+                FSDataOutputStream out = fs.create(leaseFile, false);
+                try {
+                    out.write((owner + " " + getHolderName() + "\n").getBytes(StandardCharsets.UTF_8));
+                } finally {
+                    out.close();
+                }
+                fs.deleteOnExit(leaseFile);
+                LOG.debug("Lease {} acquired, fetching the token.", leaseFile);
+                return new Closeable() {
+                    @Override
+                    public void close() throws IOException {
+                        fs.cancelDeleteOnExit(leaseFile);
+                        deleteLease(leaseFile, owner);
+                    }
+                };
+            } catch (FileAlreadyExistsException e) {
+                LOG.debug("Lease {} is held by another JVM, waiting for its token.", leaseFile);
+            }
+
+            FileStatus status;
+            try {
+                status = fs.getFileStatus(leaseFile);
+            } catch (FileNotFoundException e) {
+                status = null;
+            }
+            if (status == null) {
+                // released between the two calls, the waiter creating the lease again fetches the token
+                continue;
+            }
+            if (status.getModificationTime() < System.currentTimeMillis() - leaseTimeout) {
+                String staleOwner = readLeaseOwner(leaseFile);
+                if (staleOwner != null) {
+                    LOG.warn("Lease {} expired, it is taken over.", leaseFile);
+                    deleteLease(leaseFile, staleOwner);
+                }
+                continue;
+            }
+            if (System.currentTimeMillis() + leasePollInterval > deadline) {
+                LOG.warn("Timed out waiting for lease " + leaseFile + ", the token is fetched without it.");
+                return null;
+            }
+            try {
+                Thread.sleep(leasePollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for lease " + leaseFile);
+            }
+            waited = true;
+        }
+    }
+
+    private boolean isTokenStoredSince(long time) throws IOException {
+        try {
+            return fs.getFileStatus(new Path(tokenCacheFolder, LATEST_TOKEN_FILE)).getModificationTime() >= time;
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the owner id written in the lease file, or null if it was deleted.
+     */
+    private String readLeaseOwner(Path leaseFile) throws IOException {
+        FSDataInputStream in;
+        try {
+            in = fs.open(leaseFile);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            String content = IOUtils.toString(in, StandardCharsets.UTF_8);
+            int index = content.indexOf(' ');
+            return index < 0 ? content.trim() : content.substring(0, index);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Deletes the lease file only if it still belongs to the owner, so that a lease taken over by another JVM
+     * after it expired is left to its new holder.
+     */
+    private void deleteLease(Path leaseFile, String owner) throws IOException {
+        String current = readLeaseOwner(leaseFile);
+        if (owner.equals(current)) {
+            fs.delete(leaseFile, false);
+        } else if (current != null) {
+            LOG.warn("Lease {} is now held by another JVM, it is not deleted.", leaseFile);
+        }
+    }
+
+    private static String getHolderName() {
+        return ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    /**
+     * Deletes, in the folders of all the identities, the temporary files left by failed writes, the leases left
+     * by JVMs which died, the token files not written for longer than a token lives, and the expired token files
+     * of the per-day folders written by older versions, then the empty folders.
+     */
+    @Override
+    public int compact(int maxFiles) throws IOException {
+        Path root = tokenCacheFolder.getParent();
+        TokenCacheJanitor.Budget budget = new TokenCacheJanitor.Budget(maxFiles);
+        long now = System.currentTimeMillis();
+        try {
+            for (FileStatus status : fs.listStatus(root)) {
+                if (!budget.visit()) {
+                    break;
+                }
+                if (status.isDirectory()) {
+                    compactIdentityFolder(status.getPath(), now, budget);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            LOG.debug("HDFS cache folder {} does not exist, nothing to compact.", root);
+        }
+        return budget.getDeleted();
+    }
+
+    private void compactIdentityFolder(Path folder, long now, TokenCacheJanitor.Budget budget) throws IOException {
+        int remaining = 0;
+        for (FileStatus status : fs.listStatus(folder)) {
+            if (!budget.visit()) {
+                return;
+            }
+            if (status.isDirectory()) {
+                if (!compactLegacyCacheFolder(status.getPath(), now, budget)) {
+                    remaining++;
+                }
+                continue;
+            }
+            String name = status.getPath().getName();
+            long maxAge = name.endsWith(TEMP_FILE_SUFFIX) ? TEMP_FILE_MAX_AGE
+                    : name.equals(LEASE_FILE) ? leaseTimeout : MAX_TOKEN_LIFETIME;
+            if (status.getModificationTime() < now - maxAge && fs.delete(status.getPath(), false)) {
+                budget.deleted();
+                LOG.debug("Deleted stale token cache file {}", status.getPath());
+            } else {
+                remaining++;
+            }
+        }
+        // a writer recreates the folder, and a folder which is no longer empty is not deleted
+        if (remaining == 0) {
+            deleteEmptyFolder(folder, budget);
+        }
+    }
+
+    /**
+     * Deletes the expired {@code <uuid>.<expiry time>} files under {@code <account>/<yyyyMMdd>}, then the empty folders.
+     * @return true if the folder is deleted.
+     */
+    private boolean compactLegacyCacheFolder(Path folder, long now, TokenCacheJanitor.Budget budget) throws IOException {
+        int remaining = 0;
+        for (FileStatus status : fs.listStatus(folder)) {
+            if (!budget.visit()) {
+                return false;
+            }
+            if (status.isDirectory()) {
+                if (!compactLegacyCacheFolder(status.getPath(), now, budget)) {
+                    remaining++;
+                }
+                continue;
+            }
+            String[] segments = status.getPath().getName().split("\\.");
+            long expiryTime;
+            try {
+                expiryTime = segments.length == 2 ? Long.parseLong(segments[1]) : Long.MAX_VALUE;
+            } catch (NumberFormatException e) {
+                expiryTime = Long.MAX_VALUE;
+            }
+            if (expiryTime < now && fs.delete(status.getPath(), false)) {
+                budget.deleted();
+                LOG.debug("Deleted expired token file {}", status.getPath());
+            } else {
+                remaining++;
+            }
+        }
+        return remaining == 0 && deleteEmptyFolder(folder, budget);
+    }
+
+    /**
+     * Deletes the folder if it is still empty, a writer may have created a file in it since it was listed.
+     * @return true if the folder is deleted.
+     */
+    private boolean deleteEmptyFolder(Path folder, TokenCacheJanitor.Budget budget) throws IOException {
+        try {
+            if (!fs.delete(folder, false)) {
+                return false;
+            }
+        } catch (PathIsNotEmptyDirectoryException e) {
+            LOG.debug("Cache folder {} is no longer empty, it is kept.", folder);
+            return false;
+        }
+        budget.deleted();
+        LOG.debug("Deleted empty cache folder {}", folder);
+        return true;
+    }
+
+    /**
+     * The JVM creating the marker file of the current interval, atomically, compacts the folders of the cluster.
+     */
+    @Override
+    public boolean tryStartCompaction(long interval) throws IOException {
+        Path root = tokenCacheFolder.getParent();
+        String marker = JANITOR_MARKER_PREFIX + System.currentTimeMillis() / interval;
+        try {
+            fs.create(new Path(root, marker), false).close();
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+        FileStatus[] previous = fs.globStatus(new Path(root, JANITOR_MARKER_PREFIX + "*"));
+        if (previous != null) {
+            for (FileStatus status : previous) {
+                if (!status.getPath().getName().equals(marker)) {
+                    fs.delete(status.getPath(), false);
+                }
+            }
+        }
+        return true;
+    }
+}
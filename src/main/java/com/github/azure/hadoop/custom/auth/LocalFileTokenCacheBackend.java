@@ -0,0 +1,278 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.UUID;
+
+/**
+ * Keeps the tokens in files of the local file system, shared by the JVMs of the node:
+ * {@code ~/.azure/MSITokenCache/<identity hash>.token} holds the {@link TokenRecord} of the identity, so that a token
+ * is found with a single read for its whole lifetime. The token files {@code ~/.azure/MSITokenCache/<yyyyMMddHH>/<uuid>}
+ * written by older versions don't tell their identity, they are only read as long as no record was written on the node.
+ */
+public class LocalFileTokenCacheBackend implements TokenCacheBackend {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalFileTokenCacheBackend.class);
+
+    private static final String TOKEN_FILE_FOLDER = "/.azure/MSITokenCache/";
+
+    private static final String RECORD_FILE_SUFFIX = ".token";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String JANITOR_MARKER_PREFIX = ".janitor.";
+
+    static final int HALF_HOUR = 30 * 60 * 1000;
+
+    private static final long ONE_HOUR = 3600 * 1000;
+    // temporary files older than this are left by failed writes
+    private static final long TEMP_FILE_MAX_AGE = ONE_HOUR;
+    // an Azure AD token lives at most 24 hours, a token file not written since is expired
+    private static final long MAX_TOKEN_LIFETIME = 24 * ONE_HOUR;
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHH").withZone(ZoneId.systemDefault());
+
+    // UUID of the temporary token files
+    private final String tokenFileUUID = UUID.randomUUID().toString();
+
+    private boolean deleteOnExit;
+
+    private long identityHash;
+
+    private TokenEncryption encryption;
+
+    private File tokenFile;
+
+    @Override
+    public void initialize(Configuration configuration, String identityKey) throws IOException {
+        this.deleteOnExit = configuration.getBoolean(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_CACHE_DELETE_ON_EXIT, false);
+        this.identityHash = MappedTokenCache.getIdentityHash(identityKey);
+        this.encryption = TokenEncryption.get(configuration);
+        this.tokenFile = new File(getCacheRoot(), Long.toHexString(identityHash) + RECORD_FILE_SUFFIX);
+    }
+
+    @Override
+    public AzureADToken lookup() throws IOException {
+        RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(tokenFile, "r");
+        } catch (FileNotFoundException e) {
+            return lookupLegacyCacheFolders();
+        }
+        try {
+            TokenRecord.Header header = TokenRecord.readHeader(raf);
+            if (header == null || header.getIdentityHash() != identityHash) {
+                LOG.error("Invalid token file " + tokenFile + ", it is not a token record of the identity.");
+                return null;
+            }
+            return TokenRecord.readToken(raf, header, encryption).toAzureADToken();
+        } catch (IOException e) {
+            LOG.error("Failed to read token record from " + tokenFile, e);
+            return null;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * @return the token written last in the hourly folders of the current and previous hours by older versions,
+     * or null if a record was written on the node or if the tokens in plain text are rejected.
+     */
+    private AzureADToken lookupLegacyCacheFolders() throws IOException {
+        if (encryption.isRequired() || hasRecordFiles()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        File latest = null;
+        long latestWriteTime = 0;
+        for (File folder : new File[]{getLegacyCacheFolder(now), getLegacyCacheFolder(now - ONE_HOUR)}) {
+            File[] files = folder.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                // older versions name the token files with a UUID
+                if (file.getName().indexOf('.') < 0 && file.lastModified() > latestWriteTime) {
+                    latest = file;
+                    latestWriteTime = file.lastModified();
+                }
+            }
+        }
+        if (latest == null || latestWriteTime + HALF_HOUR <= now) {
+            return null;
+        }
+        String token = readTokenFromFile(latest);
+        return token == null ? null : new CachedToken(token, latestWriteTime + HALF_HOUR).toAzureADToken();
+    }
+
+    private static boolean hasRecordFiles() {
+        String[] records = getCacheRoot().list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(RECORD_FILE_SUFFIX);
+            }
+        });
+        return records != null && records.length > 0;
+    }
+
+    /**
+     * Writes the token to a temporary file, then moves it to the token file of the identity,
+     * so that readers never see a partially written token.
+     */
+    @Override
+    public void store(AzureADToken token) throws IOException {
+        File tempFile = new File(tokenFile.getParentFile(), tokenFile.getName() + "." + tokenFileUUID + TEMP_FILE_SUFFIX);
+        byte[] record = TokenRecord.encode(identityHash, CachedToken.from(token), encryption);
+        tokenFile.getParentFile().mkdirs();
+        try {
+            Files.write(tempFile.toPath(), record);
+            try {
+                Files.move(tempFile.toPath(), tokenFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            LOG.debug("Writing token to cache {}", tokenFile);
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                LOG.debug("Failed to delete temporary token file {}", tempFile);
+            }
+            if (deleteOnExit) {
+                tokenFile.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Deletes the record of the identity. The files of older versions don't tell their identity, they are left to expire.
+     */
+    @Override
+    public void invalidate() {
+        if (tokenFile.exists() && !tokenFile.delete()) {
+            LOG.debug("Failed to delete token file {}", tokenFile);
+        }
+    }
+
+    /**
+     * Deletes the token files not written for longer than a token lives, the temporary files left by failed writes,
+     * and the expired token files of the hourly folders written by older versions, then the empty folders.
+     */
+    @Override
+    public int compact(int maxFiles) {
+        File[] entries = getCacheRoot().listFiles();
+        TokenCacheJanitor.Budget budget = new TokenCacheJanitor.Budget(maxFiles);
+        if (entries == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        for (File entry : entries) {
+            if (!budget.visit()) {
+                break;
+            }
+            if (entry.isDirectory()) {
+                compactLegacyCacheFolder(entry, now, budget);
+                continue;
+            }
+            String name = entry.getName();
+            long maxAge = name.endsWith(RECORD_FILE_SUFFIX) ? MAX_TOKEN_LIFETIME
+                    : name.endsWith(TEMP_FILE_SUFFIX) ? TEMP_FILE_MAX_AGE : Long.MAX_VALUE;
+            if (maxAge < Long.MAX_VALUE && entry.lastModified() < now - maxAge && entry.delete()) {
+                budget.deleted();
+                LOG.debug("Deleted stale token cache file {}", entry);
+            }
+        }
+        return budget.getDeleted();
+    }
+
+    private void compactLegacyCacheFolder(File folder, long now, TokenCacheJanitor.Budget budget) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        int remaining = 0;
+        for (File file : files) {
+            if (!budget.visit() || file.lastModified() + HALF_HOUR >= now || !file.delete()) {
+                remaining++;
+            } else {
+                budget.deleted();
+            }
+        }
+        if (remaining == 0 && folder.delete()) {
+            budget.deleted();
+            LOG.debug("Deleted empty cache folder {}", folder);
+        }
+    }
+
+    /**
+     * The JVM creating the marker file of the current interval compacts the folders of the node.
+     */
+    @Override
+    public boolean tryStartCompaction(long interval) throws IOException {
+        File root = getCacheRoot();
+        final String marker = JANITOR_MARKER_PREFIX + System.currentTimeMillis() / interval;
+        root.mkdirs();
+        if (!new File(root, marker).createNewFile()) {
+            return false;
+        }
+        File[] previous = root.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(JANITOR_MARKER_PREFIX) && !name.equals(marker);
+            }
+        });
+        if (previous != null) {
+            for (File file : previous) {
+                if (!file.delete()) {
+                    LOG.debug("Failed to delete janitor marker {}", file);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOG.debug("Failed to close token file", e);
+            }
+        }
+    }
+
+    private static String readTokenFromFile(File file) throws IOException {
+        BufferedReader reader = null;
+        try {
+            reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+            return reader.readLine();
+        } catch (IOException e) {
+            LOG.error("Failed to read token from file", e);
+            return null;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    private static File getCacheRoot() {
+        return new File(System.getProperty("user.home") + TOKEN_FILE_FOLDER);
+    }
+
+    private static File getLegacyCacheFolder(long time) {
+        return new File(getCacheRoot(), TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(time)));
+    }
+}
@@ -0,0 +1,284 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Token cache shared by all the JVMs of a node through a memory mapped file.
+ * <p>
+ * The file is a header followed by a fixed table of slots, one per identity:
+ * <pre>
+ * header: magic (int), layout version (int), slot count (int), slot size (int)
+ * slot:   sequence (long), identity hash (long), expiry time (long), token length (int), crc (int), token bytes
+ * </pre>
+ * Readers don't lock nor make any system call: the sequence of a slot is odd while it is written,
+ * and a reader retries if the sequence is odd or changed during the read. Since plain memory accesses
+ * may be reordered, the CRC of the slot content is checked as well before a token is returned.
+ * Writers of all the JVMs are serialized by a lock on the header region of the file.
+ */
+final class MappedTokenCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedTokenCache.class);
+
+    private static final int MAGIC = 0x415A544B; // "AZTK"
+    private static final int LAYOUT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    static final int DEFAULT_SLOT_COUNT = 32;
+    // large enough for an Azure AD access token
+    static final int SLOT_SIZE = 8192;
+
+    private static final int SEQUENCE_OFFSET = 0;
+    private static final int IDENTITY_OFFSET = 8;
+    private static final int EXPIRY_OFFSET = 16;
+    private static final int LENGTH_OFFSET = 24;
+    private static final int CRC_OFFSET = 28;
+    private static final int TOKEN_OFFSET = 32;
+
+    private static final int MAX_READ_ATTEMPTS = 100;
+
+    // written by invalidate, slots are never emptied so that the probing of the other identities still works
+    private static final byte[] EXPIRED_TOKEN = {'-'};
+
+    // the fetch locks of the identities are taken on a range far beyond the end of the file
+    private static final long FETCH_LOCK_BASE = Long.MAX_VALUE / 2;
+    private static final int FETCH_LOCK_RANGE = 1 << 20;
+
+    private static final Map<String, MappedTokenCache> CACHES = new ConcurrentHashMap<>();
+    private static final ReentrantLock CACHES_LOCK = new ReentrantLock();
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private final int slotCount;
+
+    private final int slotSize;
+
+    // file locks are held per JVM, so the writers of this JVM are serialized before taking it
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private MappedTokenCache(File file, FileChannel channel, MappedByteBuffer buffer, int slotCount, int slotSize) {
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * Returns the cache of the file, the file is created if it does not exist.
+     */
+    static MappedTokenCache get(File file, int slotCount) throws IOException {
+        String key = file.getAbsolutePath();
+        MappedTokenCache cache = CACHES.get(key);
+        if (cache == null) {
+            // the file is opened and locked while holding it, a ReentrantLock doesn't pin a virtual thread
+            CACHES_LOCK.lock();
+            try {
+                cache = CACHES.get(key);
+                if (cache == null) {
+                    cache = open(file, slotCount);
+                    CACHES.put(key, cache);
+                }
+            } finally {
+                CACHES_LOCK.unlock();
+            }
+        }
+        return cache;
+    }
+
+    private static MappedTokenCache open(File file, int slotCount) throws IOException {
+        file.getParentFile().mkdirs();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            int slotSize = SLOT_SIZE;
+            FileLock lock = channel.lock(0, HEADER_SIZE, false);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(16);
+                if (channel.size() >= HEADER_SIZE && channel.read(header, 0) == 16
+                        && header.getInt(0) == MAGIC && header.getInt(4) == LAYOUT_VERSION) {
+                    // the layout is decided by the JVM which created the file
+                    slotCount = header.getInt(8);
+                    slotSize = header.getInt(12);
+                } else {
+                    LOG.info("Initializing memory mapped token cache " + file);
+                    channel.truncate(0);
+                    header.clear();
+                    header.putInt(MAGIC).putInt(LAYOUT_VERSION).putInt(slotCount).putInt(slotSize).flip();
+                    channel.write(header, 0);
+                }
+                long size = HEADER_SIZE + (long) slotCount * slotSize;
+                if (channel.size() < size) {
+                    channel.write(ByteBuffer.allocate(1), size - 1);
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                return new MappedTokenCache(file, channel, buffer, slotCount, slotSize);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 64 bits FNV-1a hash of the identity, zero marks an empty slot so it is never returned.
+     */
+    static long getIdentityHash(String identityKey) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : identityKey.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * @return the token of the identity, or null if it is not in the cache.
+     */
+    CachedToken get(long identityHash) {
+        ByteBuffer view = buffer.duplicate();
+        for (int probe = 0; probe < slotCount; probe++) {
+            int offset = getSlotOffset(identityHash, probe);
+            for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+                long sequence = view.getLong(offset + SEQUENCE_OFFSET);
+                if ((sequence & 1) != 0) { // being written
+                    continue;
+                }
+                long identity = view.getLong(offset + IDENTITY_OFFSET);
+                if (identity == 0) { // empty slot, the identity is not in the table
+                    return null;
+                }
+                if (identity != identityHash) {
+                    break;
+                }
+                long expiryTime = view.getLong(offset + EXPIRY_OFFSET);
+                int length = view.getInt(offset + LENGTH_OFFSET);
+                int crc = view.getInt(offset + CRC_OFFSET);
+                if (length <= 0 || length > slotSize - TOKEN_OFFSET) {
+                    continue;
+                }
+                byte[] token = new byte[length];
+                view.position(offset + TOKEN_OFFSET);
+                view.get(token);
+                if (view.getLong(offset + SEQUENCE_OFFSET) != sequence || crc != getCrc(identity, expiryTime, token)) {
+                    continue;
+                }
+                return new CachedToken(new String(token, StandardCharsets.UTF_8), expiryTime);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the token in the slot of the identity, or in the slot of the token expiring first if the table is full.
+     * @return false if the token is too large for a slot.
+     */
+    boolean put(long identityHash, CachedToken token) throws IOException {
+        byte[] bytes = token.getToken().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > slotSize - TOKEN_OFFSET) {
+            LOG.error("Token of " + bytes.length + " bytes is too large for the memory mapped token cache " + file);
+            return false;
+        }
+        return write(identityHash, bytes, token.getExpiryTime(), false);
+    }
+
+    /**
+     * Replaces the token of the identity with an expired one, if it is in the table.
+     */
+    void invalidate(long identityHash) throws IOException {
+        write(identityHash, EXPIRED_TOKEN, 0, true);
+    }
+
+    private boolean write(long identityHash, byte[] bytes, long expiryTime, boolean onlyIfPresent) throws IOException {
+        writeLock.lock();
+        try {
+            FileLock lock = channel.lock(0, HEADER_SIZE, false);
+            try {
+                int offset = findSlotToWrite(identityHash);
+                if (onlyIfPresent && buffer.getLong(offset + IDENTITY_OFFSET) != identityHash) {
+                    return false;
+                }
+                long sequence = buffer.getLong(offset + SEQUENCE_OFFSET);
+                if ((sequence & 1) != 0) { // a writer died in the middle of a write
+                    sequence++;
+                }
+                buffer.putLong(offset + SEQUENCE_OFFSET, sequence + 1);
+                buffer.putLong(offset + IDENTITY_OFFSET, identityHash);
+                buffer.putLong(offset + EXPIRY_OFFSET, expiryTime);
+                buffer.putInt(offset + LENGTH_OFFSET, bytes.length);
+                buffer.putInt(offset + CRC_OFFSET, getCrc(identityHash, expiryTime, bytes));
+                ByteBuffer view = buffer.duplicate();
+                view.position(offset + TOKEN_OFFSET);
+                view.put(bytes);
+                buffer.putLong(offset + SEQUENCE_OFFSET, sequence + 2);
+                return true;
+            } finally {
+                lock.release();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Locks the identity for all the JVMs of the node, so that only one of them fetches its token.
+     * @return the lock to release, or null if it is held by another thread of this JVM.
+     */
+    FileLock lockIdentity(long identityHash) throws IOException {
+        try {
+            return channel.lock(FETCH_LOCK_BASE + (int) Math.floorMod(identityHash, (long) FETCH_LOCK_RANGE), 1, false);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private int findSlotToWrite(long identityHash) {
+        int oldestOffset = -1;
+        long oldestExpiryTime = Long.MAX_VALUE;
+        for (int probe = 0; probe < slotCount; probe++) {
+            int offset = getSlotOffset(identityHash, probe);
+            long identity = buffer.getLong(offset + IDENTITY_OFFSET);
+            if (identity == 0 || identity == identityHash) {
+                return offset;
+            }
+            long expiryTime = buffer.getLong(offset + EXPIRY_OFFSET);
+            if (expiryTime < oldestExpiryTime) {
+                oldestExpiryTime = expiryTime;
+                oldestOffset = offset;
+            }
+        }
+        return oldestOffset;
+    }
+
+    private int getSlotOffset(long identityHash, int probe) {
+        return HEADER_SIZE + (int) Math.floorMod(identityHash + probe, (long) slotCount) * slotSize;
+    }
+
+    private static int getCrc(long identityHash, long expiryTime, byte[] token) {
+        CRC32 crc = new CRC32();
+        ByteBuffer numbers = ByteBuffer.allocate(16);
+        numbers.putLong(identityHash).putLong(expiryTime);
+        crc.update(numbers.array());
+        crc.update(token);
+        return (int) crc.getValue();
+    }
+}
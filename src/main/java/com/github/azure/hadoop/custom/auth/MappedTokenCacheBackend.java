@@ -0,0 +1,75 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+
+/**
+ * Keeps the tokens in a memory mapped file shared by all the JVMs of the node, see {@link MappedTokenCache}.
+ * While a token is fetched the identity is locked for the whole node.
+ * The tokens are kept in plain text, so the backend refuses to start when the token cache encryption is required.
+ */
+public class MappedTokenCacheBackend implements TokenCacheBackend {
+
+    public static final String AZURE_CUSTOM_TOKEN_CACHE_MMAP_PATH = "fs.azure.custom.token.cache.mmap.path";
+    public static final String AZURE_CUSTOM_TOKEN_CACHE_MMAP_SLOTS = "fs.azure.custom.token.cache.mmap.slots";
+
+    private static final String MAPPED_CACHE_FILE = "/.azure/MSITokenCache/tokens.mmap";
+
+    private MappedTokenCache cache;
+
+    private long identityHash;
+
+    @Override
+    public void initialize(Configuration configuration, String identityKey) throws IOException {
+        if (configuration.getBoolean(TokenEncryption.AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_REQUIRED, false)) {
+            throw new IOException("The memory mapped token cache is not encrypted, it cannot be used with "
+                    + TokenEncryption.AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_REQUIRED);
+        }
+        File file = new File(configuration.get(AZURE_CUSTOM_TOKEN_CACHE_MMAP_PATH,
+                System.getProperty("user.home") + MAPPED_CACHE_FILE));
+        this.cache = MappedTokenCache.get(file,
+                configuration.getInt(AZURE_CUSTOM_TOKEN_CACHE_MMAP_SLOTS, MappedTokenCache.DEFAULT_SLOT_COUNT));
+        this.identityHash = MappedTokenCache.getIdentityHash(identityKey);
+    }
+
+    @Override
+    public AzureADToken lookup() {
+        CachedToken token = cache.get(identityHash);
+        return token == null ? null : token.toAzureADToken();
+    }
+
+    @Override
+    public void store(AzureADToken token) throws IOException {
+        cache.put(identityHash, CachedToken.from(token));
+    }
+
+    @Override
+    public void invalidate() throws IOException {
+        cache.invalidate(identityHash);
+    }
+
+    @Override
+    public int compact(int maxFiles) {
+        // the table has a fixed size, the slots of expired tokens are reused
+        return 0;
+    }
+
+    @Override
+    public Closeable lock() throws IOException {
+        final FileLock lock = cache.lockIdentity(identityHash);
+        if (lock == null) {
+            return null;
+        }
+        return new Closeable() {
+            @Override
+            public void close() throws IOException {
+                lock.release();
+            }
+        };
+    }
+}
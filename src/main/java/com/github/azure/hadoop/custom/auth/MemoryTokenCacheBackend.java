@@ -0,0 +1,53 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the tokens in the JVM only, for deployments without a shared storage, or as a first tier
+ * in front of a slower backend so that a provider of another class gets the token without reading it.
+ */
+public class MemoryTokenCacheBackend implements TokenCacheBackend {
+
+    private static final Map<String, CachedToken> TOKENS = new ConcurrentHashMap<>();
+
+    private String identityKey;
+
+    @Override
+    public void initialize(Configuration configuration, String identityKey) {
+        this.identityKey = identityKey;
+    }
+
+    @Override
+    public AzureADToken lookup() {
+        CachedToken token = TOKENS.get(identityKey);
+        return token == null ? null : token.toAzureADToken();
+    }
+
+    @Override
+    public void store(AzureADToken token) {
+        TOKENS.put(identityKey, CachedToken.from(token));
+    }
+
+    @Override
+    public void invalidate() {
+        TOKENS.remove(identityKey);
+    }
+
+    @Override
+    public int compact(int maxFiles) {
+        int deleted = 0;
+        Iterator<CachedToken> tokens = TOKENS.values().iterator();
+        for (int i = 0; i < maxFiles && tokens.hasNext(); i++) {
+            if (tokens.next().isExpired()) {
+                tokens.remove();
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+}
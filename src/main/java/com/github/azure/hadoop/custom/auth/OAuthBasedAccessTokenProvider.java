@@ -2,7 +2,6 @@ package com.github.azure.hadoop.custom.auth;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys;
-import org.apache.hadoop.fs.azurebfs.extensions.CustomTokenProviderAdaptee;
 import org.apache.hadoop.fs.azurebfs.oauth2.AzureADAuthenticator;
 import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
 import org.slf4j.Logger;
@@ -10,12 +9,12 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.*;
-import static org.apache.hadoop.fs.azurebfs.constants.FileSystemConfigurations.*;
 
-public class OAuthBasedAccessTokenProvider implements CustomTokenProviderAdaptee {
+public class OAuthBasedAccessTokenProvider implements AzureADTokenProvider {
 
     private static final Logger LOG = LoggerFactory.getLogger(OAuthBasedAccessTokenProvider.class);
 
@@ -24,36 +23,15 @@ public class OAuthBasedAccessTokenProvider implements CustomTokenProviderAdaptee
     private String clientId;
     private String clientSecret;
 
-    private long tokenFetchTime;
+    // expiry time of the last fetched token
+    private volatile long tokenExpiryTime;
 
     private static final long ONE_HOUR = 3600 * 1000;
 
-    /**
-     *  The minimum random ratio used for delay interval calculation.
-     */
-    private static final double MIN_RANDOM_RATIO = 0.8;
+    private TokenFetchRetryEngine retryEngine;
 
-    /**
-     *  The maximum random ratio used for delay interval calculation.
-     */
-    private static final double MAX_RANDOM_RATIO = 1.2;
-
-
-    /**
-     *  Holds the random number generator used to calculate randomized backoff intervals
-     */
-    private final Random randRef = new Random();
-
-
-    private int minBackoffInterval;
-
-    private int maxBackoffInterval;
-
-    private int backoffInterval;
-
-    private int customTokenFetchRetryCount;
-
-    private  int retryCount = 0;
+    // served while the circuit breaker is open, until it actually expires
+    private volatile AzureADToken lastKnownGoodToken;
 
     @Override
     public void initialize(Configuration configuration, String accountName) throws IOException  {
@@ -64,15 +42,10 @@ public class OAuthBasedAccessTokenProvider implements CustomTokenProviderAdaptee
         this.clientSecret =
                 getConfigurationValue(configuration, ConfigurationKeys.FS_AZURE_ACCOUNT_OAUTH_CLIENT_SECRET);
 
-        this.minBackoffInterval = configuration.getInt(AZURE_MIN_BACKOFF_INTERVAL, DEFAULT_MIN_BACKOFF_INTERVAL);
-        this.maxBackoffInterval = configuration.getInt(AZURE_MAX_BACKOFF_INTERVAL, DEFAULT_MAX_BACKOFF_INTERVAL);
-        this.backoffInterval = configuration.getInt(AZURE_BACKOFF_INTERVAL, DEFAULT_BACKOFF_INTERVAL);
-        this.customTokenFetchRetryCount = configuration.getInt(AZURE_CUSTOM_TOKEN_FETCH_RETRY_COUNT, DEFAULT_CUSTOM_TOKEN_FETCH_RETRY_COUNT);
+        this.retryEngine = new TokenFetchRetryEngine(configuration, authEndpoint);
     }
 
 
-
-
     private String getConfigurationValue(Configuration configuration, String key, String defaultValue) {
         String value = configuration.get(key, defaultValue);
         return value.trim();
@@ -85,47 +58,47 @@ public class OAuthBasedAccessTokenProvider implements CustomTokenProviderAdaptee
 
     @Override
     public String getAccessToken() throws IOException {
+        return getAzureADToken().getAccessToken();
+    }
 
-        synchronized (this) {
-            try{
-                AzureADToken token = AzureADAuthenticator.getTokenUsingClientCreds(authEndpoint, clientId, clientSecret);
-                this.tokenFetchTime = System.currentTimeMillis();
-                return token.getAccessToken();
-            } catch (Exception e) {
-                LOG.error("get access token from remote server failed with exception. " + e.toString());
-                if(retryCount<customTokenFetchRetryCount) { //Too many requests
-                    long waitInterval = getWaitInterval(++retryCount);
-                    LOG.error("Wait for retry in "+Math.round(waitInterval/1000)+" sec.");
-                    try{
-                        Thread.sleep(waitInterval);
-                    } catch (InterruptedException ex) {
-                        LOG.error("Failed to wait for "+Math.round(waitInterval/1000)+" sec. retry immediately.");
-                    }
-                    if (retryCount == customTokenFetchRetryCount) {
-                        retryCount = 0;
-                    }
-                }
-                throw new IOException(e);
+    @Override
+    public AzureADToken getAzureADToken() throws IOException {
+        return retryEngine.execute(new TokenFetchRetryEngine.TokenFetch() {
+            @Override
+            public AzureADToken fetch() throws IOException {
+                return fetchToken();
             }
-        }
+        }, lastKnownGoodToken);
+    }
 
+    @Override
+    public CompletableFuture<AzureADToken> getAzureADTokenAsync(Executor executor) {
+        return retryEngine.executeAsync(new TokenFetchRetryEngine.TokenFetch() {
+            @Override
+            public AzureADToken fetch() throws IOException {
+                return fetchToken();
+            }
+        }, lastKnownGoodToken, executor);
+    }
+
+    private AzureADToken fetchToken() throws IOException {
+        AzureADToken token = AzureADAuthenticator.getTokenUsingClientCreds(authEndpoint, clientId, clientSecret);
+        if (token.getExpiry() == null) { // assume the default life time if the expiry is missing
+            token.setExpiry(new Date(System.currentTimeMillis() + ONE_HOUR));
+        }
+        this.tokenExpiryTime = token.getExpiry().getTime();
+        this.lastKnownGoodToken = token;
+        LOG.debug("get access token from remote server successfully");
+        return token;
     }
 
     @Override
     public Date getExpiryTime() {
-        return new Date(tokenFetchTime + ONE_HOUR);
+        return new Date(tokenExpiryTime);
     }
 
 
     public long getWaitInterval(final int retryCount) {
-        final long boundedRandDelta = (int) (this.backoffInterval * MIN_RANDOM_RATIO)
-                + this.randRef.nextInt((int) (this.backoffInterval * MAX_RANDOM_RATIO)
-                - (int) (this.backoffInterval * MIN_RANDOM_RATIO));
-
-        final double incrementDelta = (Math.pow(2, retryCount - 1)) * boundedRandDelta;
-
-        final long retryInterval = (int) Math.round(Math.min(this.minBackoffInterval + incrementDelta, maxBackoffInterval));
-
-        return retryInterval;
+        return retryEngine.getWaitInterval(retryCount);
     }
 }
@@ -0,0 +1,57 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs a message at most once per interval, with the number of messages suppressed since the previous one,
+ * so that diagnostics of frequent events are kept without flooding the logs. An interval of 0 logs every message.
+ * Suppressed messages are only counted, their arguments are not formatted.
+ */
+final class RateLimitedLog {
+
+    public static final String AZURE_CUSTOM_TOKEN_LOG_INTERVAL = "fs.azure.custom.token.log.interval";
+    public static final long DEFAULT_LOG_INTERVAL = 60 * 1000;
+
+    private final Logger log;
+
+    private final long intervalMillis;
+
+    private final AtomicLong lastLogTime = new AtomicLong();
+
+    private final AtomicLong suppressed = new AtomicLong();
+
+    RateLimitedLog(Logger log, long intervalMillis) {
+        this.log = log;
+        this.intervalMillis = intervalMillis;
+    }
+
+    RateLimitedLog(Logger log, Configuration configuration) {
+        this(log, configuration.getLong(AZURE_CUSTOM_TOKEN_LOG_INTERVAL, DEFAULT_LOG_INTERVAL));
+    }
+
+    /**
+     * @param format slf4j format with two arguments, the number of suppressed messages is appended.
+     */
+    void info(String format, Object arg1, Object arg2) {
+        if (!log.isInfoEnabled()) {
+            return;
+        }
+        if (!tryAcquire()) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        log.info(format + " ({} similar messages suppressed)", arg1, arg2, suppressed.getAndSet(0));
+    }
+
+    private boolean tryAcquire() {
+        if (intervalMillis <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastLogTime.get();
+        return now - last >= intervalMillis && lastLogTime.compareAndSet(last, now);
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Decides when the tokens are refreshed, set by "fs.azure.custom.token.refresh.policy".
+ * An implementation must have a public no-arg constructor, it is shared by the threads of a provider.
+ */
+public interface RefreshPolicy {
+
+    void initialize(Configuration configuration);
+
+    /**
+     * @return true if a token expiring at the given time must be refreshed before it is used.
+     */
+    boolean isExpiring(long expiryTime);
+
+    /**
+     * @return the delay in milliseconds before a token expiring at the given time is refreshed in background.
+     */
+    long getRefreshDelay(long expiryTime);
+
+    /**
+     * @return the minimum time in milliseconds between two fetches of the same identity, while its token is still valid.
+     */
+    long getMinFetchInterval();
+}
@@ -0,0 +1,455 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.net.unix.DomainSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.*;
+
+/**
+ * Node local broker holding the MSI tokens of the identities requested by the JVMs of the node, so that
+ * the node sends one request per identity to Azure Instance Metadata Service instead of one per JVM.
+ * Tokens are refreshed in the background before they expire.
+ * <p>
+ * The broker listens on a Unix domain socket, as the HDFS short-circuit reads do, so that the containers with their own
+ * network namespace reach it through a mount of its folder. Only the broker user can create the socket
+ * in a folder it owns, so another local user cannot serve forged tokens in its place, and the permission of the socket
+ * selects the users allowed to connect. A TCP socket on a configured address can be enabled as well,
+ * for the nodes without the Hadoop native library. Each connection carries one request line and one response line:
+ * <pre>
+ * GET &lt;client id&gt; &lt;tenant&gt;
+ * OK &lt;expiry time&gt; &lt;token&gt;
+ * ERROR &lt;message&gt;
+ * </pre>
+ * An empty client id or tenant is sent as "-". The MSI endpoint and authority are the ones of the broker configuration.
+ * <p>
+ * An identity is only held once its first token was fetched, and it is dropped when no client requested it for
+ * "fs.azure.custom.token.broker.identity.idle.timeout" milliseconds or when its token could not be refreshed.
+ */
+public class TokenBroker implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenBroker.class);
+
+    public static final String AZURE_CUSTOM_TOKEN_BROKER_SOCKET_PATH = "fs.azure.custom.token.broker.socket.path";
+    public static final String AZURE_CUSTOM_TOKEN_BROKER_SOCKET_PERMISSION = "fs.azure.custom.token.broker.socket.permission";
+    public static final String AZURE_CUSTOM_TOKEN_BROKER_TCP_ENABLED = "fs.azure.custom.token.broker.tcp.enabled";
+    public static final String AZURE_CUSTOM_TOKEN_BROKER_TCP_ADDRESS = "fs.azure.custom.token.broker.tcp.address";
+    public static final String AZURE_CUSTOM_TOKEN_BROKER_PORT = "fs.azure.custom.token.broker.port";
+    public static final String AZURE_CUSTOM_TOKEN_BROKER_THREADS = "fs.azure.custom.token.broker.threads";
+    public static final String AZURE_CUSTOM_TOKEN_BROKER_MAX_IDENTITIES = "fs.azure.custom.token.broker.max.identities";
+    public static final String AZURE_CUSTOM_TOKEN_BROKER_IDENTITY_IDLE_TIMEOUT = "fs.azure.custom.token.broker.identity.idle.timeout";
+    public static final String DEFAULT_BROKER_SOCKET_PATH = "/var/run/azure-token-broker/broker.sock";
+    public static final String DEFAULT_BROKER_SOCKET_PERMISSION = "660";
+    public static final String DEFAULT_BROKER_TCP_ADDRESS = "127.0.0.1";
+    public static final int DEFAULT_BROKER_PORT = 47890;
+    public static final int DEFAULT_BROKER_THREADS = 8;
+    public static final int DEFAULT_BROKER_MAX_IDENTITIES = 64;
+    public static final long DEFAULT_BROKER_IDENTITY_IDLE_TIMEOUT = 3600 * 1000;
+
+    static final String REQUEST_GET = "GET";
+    static final String RESPONSE_OK = "OK";
+    static final String RESPONSE_ERROR = "ERROR";
+    static final String EMPTY_FIELD = "-";
+
+    // wait before retrying a failed background refresh, while the current token is still valid
+    private static final long REFRESH_RETRY_INTERVAL = 60 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+
+    private final Configuration configuration;
+
+    private final RefreshPolicy refreshPolicy;
+
+    private final Map<String, BrokeredIdentity> identities = new ConcurrentHashMap<>();
+
+    // identities whose first token is being fetched, so that the concurrent requests of an identity share the fetch
+    private final Map<String, BrokeredIdentity> pendingIdentities = new ConcurrentHashMap<>();
+
+    private final int maxIdentities;
+
+    private final long identityIdleTimeout;
+
+    // null if the Hadoop native library is not loaded
+    private final DomainSocket domainServerSocket;
+
+    // null unless TCP is enabled
+    private final ServerSocket tcpServerSocket;
+
+    private final ExecutorService handlers;
+
+    private volatile boolean closed;
+
+    public TokenBroker(Configuration configuration) throws IOException {
+        this.configuration = configuration;
+        this.refreshPolicy = CachedAccessTokenProvider.newRefreshPolicy(configuration);
+        this.maxIdentities = configuration.getInt(AZURE_CUSTOM_TOKEN_BROKER_MAX_IDENTITIES, DEFAULT_BROKER_MAX_IDENTITIES);
+        this.identityIdleTimeout = configuration.getLong(AZURE_CUSTOM_TOKEN_BROKER_IDENTITY_IDLE_TIMEOUT, DEFAULT_BROKER_IDENTITY_IDLE_TIMEOUT);
+        boolean tcpEnabled = configuration.getBoolean(AZURE_CUSTOM_TOKEN_BROKER_TCP_ENABLED, false);
+        String nativeFailure = DomainSocket.getLoadingFailureReason();
+        if (nativeFailure == null) {
+            String path = configuration.get(AZURE_CUSTOM_TOKEN_BROKER_SOCKET_PATH, DEFAULT_BROKER_SOCKET_PATH);
+            this.domainServerSocket = DomainSocket.bindAndListen(path);
+            FsPermission permission = new FsPermission(configuration.get(AZURE_CUSTOM_TOKEN_BROKER_SOCKET_PERMISSION,
+                    DEFAULT_BROKER_SOCKET_PERMISSION));
+            Files.setPosixFilePermissions(Paths.get(path), PosixFilePermissions.fromString(permission.toString()));
+        } else if (tcpEnabled) {
+            LOG.warn("Unix domain sockets are not available, the broker only listens on TCP. " + nativeFailure);
+            this.domainServerSocket = null;
+        } else {
+            throw new IOException("Unix domain sockets are not available and TCP is not enabled. " + nativeFailure);
+        }
+        if (tcpEnabled) {
+            this.tcpServerSocket = new ServerSocket();
+            try {
+                this.tcpServerSocket.setReuseAddress(true);
+                this.tcpServerSocket.bind(new InetSocketAddress(
+                        configuration.getTrimmed(AZURE_CUSTOM_TOKEN_BROKER_TCP_ADDRESS, DEFAULT_BROKER_TCP_ADDRESS),
+                        configuration.getInt(AZURE_CUSTOM_TOKEN_BROKER_PORT, DEFAULT_BROKER_PORT)));
+            } catch (IOException e) {
+                this.tcpServerSocket.close();
+                if (this.domainServerSocket != null) {
+                    this.domainServerSocket.close();
+                }
+                throw e;
+            }
+        } else {
+            this.tcpServerSocket = null;
+        }
+        this.handlers = Executors.newFixedThreadPool(configuration.getInt(AZURE_CUSTOM_TOKEN_BROKER_THREADS, DEFAULT_BROKER_THREADS),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "azure-token-broker-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * @return the TCP port, or -1 if TCP is not enabled.
+     */
+    public int getPort() {
+        return tcpServerSocket == null ? -1 : tcpServerSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts the connections until the broker is closed, the TCP ones in another thread if both are enabled.
+     */
+    public void serve() throws IOException {
+        if (domainServerSocket != null && tcpServerSocket != null) {
+            Thread tcpAcceptor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serveTcp();
+                    } catch (IOException e) {
+                        LOG.error("Token broker stopped accepting TCP connections.", e);
+                    }
+                }
+            }, "azure-token-broker-tcp");
+            tcpAcceptor.setDaemon(true);
+            tcpAcceptor.start();
+        }
+        if (domainServerSocket != null) {
+            serveDomainSocket();
+        } else {
+            serveTcp();
+        }
+    }
+
+    private void serveDomainSocket() throws IOException {
+        LOG.info("Token broker listening on " + domainServerSocket.getPath() + ". Version: " + Version.VERSION);
+        while (!closed) {
+            DomainSocket socket;
+            try {
+                socket = domainServerSocket.accept();
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                throw e;
+            }
+            socket.setAttribute(DomainSocket.RECEIVE_TIMEOUT, READ_TIMEOUT);
+            socket.setAttribute(DomainSocket.SEND_TIMEOUT, READ_TIMEOUT);
+            dispatch(socket, socket.getInputStream(), socket.getOutputStream());
+        }
+    }
+
+    private void serveTcp() throws IOException {
+        LOG.info("Token broker listening on " + tcpServerSocket.getLocalSocketAddress() + ". Version: " + Version.VERSION);
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = tcpServerSocket.accept();
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                throw e;
+            }
+            socket.setSoTimeout(READ_TIMEOUT);
+            dispatch(socket, socket.getInputStream(), socket.getOutputStream());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (domainServerSocket != null) {
+            domainServerSocket.close();
+        }
+        if (tcpServerSocket != null) {
+            tcpServerSocket.close();
+        }
+        handlers.shutdownNow();
+        for (BrokeredIdentity identity : identities.values()) {
+            identity.cancelRefresh();
+        }
+    }
+
+    private void dispatch(final Closeable socket, final InputStream in, final OutputStream out) {
+        handlers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handle(in, out);
+                } catch (IOException e) {
+                    LOG.error("Failed to serve broker client. " + e.toString());
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        LOG.debug("Failed to close broker client socket", e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void handle(InputStream in, OutputStream out) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String response;
+        try {
+            CachedToken token = getToken(reader.readLine());
+            response = RESPONSE_OK + " " + token.getExpiryTime() + " " + token.getToken();
+        } catch (IOException e) {
+            LOG.error("Failed to get token for broker client. " + e.toString());
+            response = RESPONSE_ERROR + " " + String.valueOf(e.getMessage()).replace('\n', ' ');
+        }
+        out.write((response + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private CachedToken getToken(String request) throws IOException {
+        String[] fields = request == null ? new String[0] : request.split(" ");
+        if (fields.length != 3 || !REQUEST_GET.equals(fields[0])) {
+            throw new IOException("Invalid request: " + request);
+        }
+        String clientId = fromField(fields[1]);
+        String tenant = fromField(fields[2]);
+        String key = clientId + "|" + tenant;
+        BrokeredIdentity identity = identities.get(key);
+        if (identity != null) {
+            return identity.getToken();
+        }
+        if (identities.size() >= maxIdentities) {
+            evictIdleIdentities();
+            if (identities.size() >= maxIdentities) {
+                throw new IOException("Too many identities, the broker holds " + maxIdentities + " at most.");
+            }
+        }
+        identity = pendingIdentities.get(key);
+        if (identity == null) {
+            Configuration identityConfiguration = new Configuration(configuration);
+            identityConfiguration.set(FS_AZURE_ACCOUNT_OAUTH_CLIENT_ID, clientId);
+            identityConfiguration.set(FS_AZURE_ACCOUNT_OAUTH_MSI_TENANT, tenant);
+            MSIBasedAccessTokenProvider provider = new MSIBasedAccessTokenProvider();
+            provider.initialize(identityConfiguration, null);
+            BrokeredIdentity created = new BrokeredIdentity(key, provider);
+            identity = pendingIdentities.putIfAbsent(key, created);
+            if (identity == null) {
+                identity = created;
+            }
+        }
+        try {
+            CachedToken token = identity.getToken();
+            identities.put(key, identity);
+            return token;
+        } finally {
+            pendingIdentities.remove(key, identity);
+        }
+    }
+
+    private void evictIdleIdentities() {
+        for (BrokeredIdentity identity : identities.values()) {
+            if (identity.isIdle()) {
+                identity.evict("it was not requested for " + identityIdleTimeout / 1000 + " sec");
+            }
+        }
+    }
+
+    static String toField(String value) {
+        return value == null || value.trim().isEmpty() ? EMPTY_FIELD : value.trim();
+    }
+
+    static String fromField(String field) {
+        return EMPTY_FIELD.equals(field) ? "" : field;
+    }
+
+    /**
+     * The token of one identity, fetched once and then refreshed in the background while clients request it.
+     */
+    private final class BrokeredIdentity {
+
+        private final String key;
+
+        private final MSIBasedAccessTokenProvider provider;
+
+        private final ReentrantLock refreshLock = new ReentrantLock();
+
+        private volatile CachedToken token;
+
+        private volatile long lastAccessTime = System.currentTimeMillis();
+
+        // guarded by refreshLock
+        private ScheduledFuture<?> refreshTask;
+
+        BrokeredIdentity(String key, MSIBasedAccessTokenProvider provider) {
+            this.key = key;
+            this.provider = provider;
+        }
+
+        CachedToken getToken() throws IOException {
+            lastAccessTime = System.currentTimeMillis();
+            CachedToken current = this.token;
+            if (current != null && !refreshPolicy.isExpiring(current.getExpiryTime())) {
+                return current;
+            }
+            refreshLock.lock();
+            try {
+                current = this.token;
+                if (current != null && !refreshPolicy.isExpiring(current.getExpiryTime())) {
+                    return current;
+                }
+                return refresh();
+            } finally {
+                refreshLock.unlock();
+            }
+        }
+
+        private CachedToken refresh() throws IOException {
+            CachedToken fetched = CachedToken.fetch(provider);
+            this.token = fetched;
+            LOG.debug("Token of identity {} fetched by the broker.", key);
+            schedule(refreshPolicy.getRefreshDelay(fetched.getExpiryTime()));
+            return fetched;
+        }
+
+        boolean isIdle() {
+            return System.currentTimeMillis() - lastAccessTime > identityIdleTimeout;
+        }
+
+        void evict(String reason) {
+            if (identities.remove(key, this)) {
+                LOG.info("Identity " + key + " is dropped by the broker, " + reason + ".");
+            }
+            cancelRefresh();
+        }
+
+        void cancelRefresh() {
+            refreshLock.lock();
+            try {
+                if (refreshTask != null) {
+                    refreshTask.cancel(false);
+                    refreshTask = null;
+                }
+            } finally {
+                refreshLock.unlock();
+            }
+        }
+
+        /**
+         * Replaces the scheduled refresh, never sooner than the minimum interval between two fetches.
+         */
+        private void schedule(long delayMillis) {
+            if (refreshTask != null) {
+                refreshTask.cancel(false);
+            }
+            refreshTask = TokenRefreshScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (closed) {
+                        return;
+                    }
+                    if (isIdle()) {
+                        evict("it was not requested for " + identityIdleTimeout / 1000 + " sec");
+                        return;
+                    }
+                    refreshLock.lock();
+                    try {
+                        refresh();
+                    } catch (IOException e) {
+                        LOG.error("Failed to refresh token of identity " + key + " in background. " + e.toString());
+                        CachedToken current = token;
+                        if (current != null && !current.isExpiringWithin(REFRESH_RETRY_INTERVAL)) {
+                            schedule(REFRESH_RETRY_INTERVAL);
+                        } else {
+                            refreshTask = null;
+                            evict("its token could not be refreshed");
+                        }
+                    } finally {
+                        refreshLock.unlock();
+                    }
+                }
+            }, Math.max(delayMillis, refreshPolicy.getMinFetchInterval()));
+        }
+    }
+
+    /**
+     * Runs the broker with the Hadoop configuration of the node, the socket path can be given as first argument.
+     */
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        if (args.length > 0) {
+            conf.set(AZURE_CUSTOM_TOKEN_BROKER_SOCKET_PATH, args[0]);
+        }
+        final TokenBroker broker = new TokenBroker(conf);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    broker.close();
+                } catch (IOException e) {
+                    LOG.error("Failed to close token broker", e);
+                }
+            }
+        });
+        broker.serve();
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Storage of the tokens of one identity for {@link CachedAccessTokenProvider}.
+ * Backends are configured by "fs.azure.custom.token.cache.backends", the first one is looked up first,
+ * and a token found in a later backend is copied to the earlier ones.
+ * The provider serializes the calls of one identity in the JVM, but a backend may be shared with other JVMs.
+ */
+public interface TokenCacheBackend {
+
+    /**
+     * @param identityKey the client id, tenant and endpoint of the tokens, the same in all the JVMs.
+     */
+    void initialize(Configuration configuration, String identityKey) throws IOException;
+
+    /**
+     * @return the last token stored, which may be expired, or null if there is none.
+     */
+    AzureADToken lookup() throws IOException;
+
+    void store(AzureADToken token) throws IOException;
+
+    /**
+     * Removes the token, so that the next lookup doesn't return it.
+     */
+    void invalidate() throws IOException;
+
+    /**
+     * Deletes the stale data, called periodically in the background by {@link TokenCacheJanitor}.
+     * @param maxFiles the maximum number of files or entries to examine, so that a run has a bounded cost.
+     * @return the number of files or entries deleted.
+     */
+    int compact(int maxFiles) throws IOException;
+
+    /**
+     * Elects the process compacting the data shared with other processes, at most once per interval for all of them.
+     * @return true if this process should compact now.
+     */
+    default boolean tryStartCompaction(long interval) throws IOException {
+        return true;
+    }
+
+    /**
+     * Locks the identity for all the processes sharing the backend while the token is fetched,
+     * so that only one of them sends the request. The caller looks the token up again once it got the lock,
+     * so a backend may also return a lock it doesn't hold once another process has stored the token.
+     * @return the lock to close, or null if the backend doesn't support it.
+     */
+    default Closeable lock() throws IOException {
+        return null;
+    }
+}
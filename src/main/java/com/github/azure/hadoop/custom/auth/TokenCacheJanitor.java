@@ -0,0 +1,127 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Deletes the expired tokens and the empty folders of the cache backends, so that their size stays flat over time.
+ * The cached providers run it in the background, at most once per interval for all the processes sharing a backend,
+ * see {@link TokenCacheBackend#tryStartCompaction}, and a run examines a bounded number of files.
+ * It can also be run from the command line with the configuration of the node.
+ */
+public final class TokenCacheJanitor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenCacheJanitor.class);
+
+    public static final String AZURE_CUSTOM_TOKEN_JANITOR_ENABLED = "fs.azure.custom.token.janitor.enabled";
+    public static final String AZURE_CUSTOM_TOKEN_JANITOR_INTERVAL = "fs.azure.custom.token.janitor.interval";
+    public static final String AZURE_CUSTOM_TOKEN_JANITOR_MAX_FILES = "fs.azure.custom.token.janitor.max.files";
+    public static final long DEFAULT_JANITOR_INTERVAL = 6 * 3600 * 1000L;
+    public static final int DEFAULT_JANITOR_MAX_FILES = 10000;
+
+    // the first run happens shortly after the first token is written, with a jitter to spread the JVMs started together
+    private static final long FIRST_RUN_DELAY = 60 * 1000;
+
+    // backends already scheduled in the JVM
+    private static final Set<String> SCHEDULED = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private TokenCacheJanitor() {
+    }
+
+    /**
+     * Schedules the periodic compaction of the backend, once per backend class and identity in the JVM.
+     */
+    static void schedule(final TokenCacheBackend backend, String identityKey, Configuration configuration) {
+        if (!configuration.getBoolean(AZURE_CUSTOM_TOKEN_JANITOR_ENABLED, true)
+                || !SCHEDULED.add(backend.getClass().getName() + "|" + identityKey)) {
+            return;
+        }
+        final long interval = Math.max(FIRST_RUN_DELAY, configuration.getLong(AZURE_CUSTOM_TOKEN_JANITOR_INTERVAL, DEFAULT_JANITOR_INTERVAL));
+        final int maxFiles = configuration.getInt(AZURE_CUSTOM_TOKEN_JANITOR_MAX_FILES, DEFAULT_JANITOR_MAX_FILES);
+        TokenRefreshScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (backend.tryStartCompaction(interval)) {
+                        compact(backend, maxFiles);
+                    }
+                } catch (Exception e) {
+                    LOG.error("Failed to compact " + backend.getClass().getSimpleName() + ". The error can be ignored.", e);
+                }
+                TokenRefreshScheduler.schedule(this, interval);
+            }
+        }, FIRST_RUN_DELAY + ThreadLocalRandom.current().nextLong(FIRST_RUN_DELAY));
+    }
+
+    private static int compact(TokenCacheBackend backend, int maxFiles) throws IOException {
+        long start = System.currentTimeMillis();
+        int deleted = backend.compact(maxFiles);
+        LOG.debug("{} compacted in {} ms, {} entries deleted.", backend.getClass().getSimpleName(),
+                System.currentTimeMillis() - start, deleted);
+        return deleted;
+    }
+
+    /**
+     * Compacts the given backends, or the local file and Hadoop file system backends, without waiting for the interval.
+     */
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        List<String> classNames = args.length > 0 ? Arrays.asList(args) : Arrays.asList(
+                LocalFileTokenCacheBackend.class.getName(), HadoopFileSystemTokenCacheBackend.class.getName());
+        String identityKey = TokenRegistry.getIdentityKey(conf, CachedAccessTokenProvider.newProvider(conf));
+        int maxFiles = conf.getInt(AZURE_CUSTOM_TOKEN_JANITOR_MAX_FILES, DEFAULT_JANITOR_MAX_FILES);
+        List<TokenCacheBackend> backends = new ArrayList<>();
+        for (String className : classNames) {
+            TokenCacheBackend backend = ReflectionUtils.newInstance(conf.getClassByName(className).asSubclass(TokenCacheBackend.class), conf);
+            backend.initialize(conf, identityKey);
+            backends.add(backend);
+        }
+        for (TokenCacheBackend backend : backends) {
+            System.out.println(backend.getClass().getSimpleName() + ": " + compact(backend, maxFiles) + " entries deleted.");
+        }
+    }
+
+    /**
+     * Counts the files examined by a compaction, to bound its cost.
+     */
+    static final class Budget {
+
+        private int remaining;
+
+        private int deleted;
+
+        Budget(int maxFiles) {
+            this.remaining = maxFiles;
+        }
+
+        /**
+         * @return false if the file must not be examined, the budget is spent.
+         */
+        boolean visit() {
+            if (remaining <= 0) {
+                return false;
+            }
+            remaining--;
+            return true;
+        }
+
+        void deleted() {
+            deleted++;
+        }
+
+        int getDeleted() {
+            return deleted;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.key.KeyProvider;
+import org.apache.hadoop.crypto.key.KeyProviderCryptoExtension;
+import org.apache.hadoop.crypto.key.KeyProviderCryptoExtension.EncryptedKeyVersion;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.apache.hadoop.util.KMSUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keys encrypting the token records, from one of:
+ * <ul>
+ *     <li>a Hadoop key provider, usually the KMS: each JVM writes with a data key generated by the key provider,
+ *     and stores it wrapped by the key named by "fs.azure.custom.token.cache.encryption.kms.key" in the records.
+ *     The unwrapped data keys are cached in memory, so a reader calls the key provider once per data key, and then
+ *     only decrypts the token locally.</li>
+ *     <li>a static AES key read with {@link Configuration#getPassword}, see
+ *     {@link TokenRecord#AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KEY}.</li>
+ * </ul>
+ * With "fs.azure.custom.token.cache.encryption.required", the records and token files in plain text are neither
+ * written nor read.
+ */
+final class TokenEncryption {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenEncryption.class);
+
+    public static final String AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KMS_KEY = "fs.azure.custom.token.cache.encryption.kms.key";
+    public static final String AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KMS_DATA_KEY_LIFETIME = "fs.azure.custom.token.cache.encryption.kms.data.key.lifetime";
+    public static final String AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_REQUIRED = "fs.azure.custom.token.cache.encryption.required";
+    public static final long DEFAULT_KMS_DATA_KEY_LIFETIME = 12 * 3600 * 1000L;
+
+    // the records hold the data keys of all the writers of the cluster, a larger number is a key provider misuse
+    private static final int MAX_UNWRAPPED_KEYS = 1024;
+
+    // key providers by path, their clients are shared by the backends of the JVM
+    private static final ConcurrentMap<String, KeyProviderCryptoExtension> KEY_PROVIDERS = new ConcurrentHashMap<>();
+
+    // data keys used to write the records, by key provider and key name
+    private static final ConcurrentMap<String, DataKey> DATA_KEYS = new ConcurrentHashMap<>();
+
+    // unwrapped data keys, by wrapped data key
+    private static final ConcurrentMap<ByteBuffer, SecretKey> UNWRAPPED_KEYS = new ConcurrentHashMap<>();
+
+    private static final TokenEncryption PLAINTEXT = new TokenEncryption(null, null, null, null, 0, false);
+
+    private final SecretKey staticKey;
+
+    private final KeyProviderCryptoExtension keyProvider;
+
+    private final String keyName;
+
+    // the key provider path and the key name
+    private final String dataKeyId;
+
+    private final long dataKeyLifetime;
+
+    private final boolean required;
+
+    private TokenEncryption(Configuration configuration, SecretKey staticKey, KeyProviderCryptoExtension keyProvider,
+                            String keyName, long dataKeyLifetime, boolean required) {
+        this.staticKey = staticKey;
+        this.keyProvider = keyProvider;
+        this.keyName = keyName;
+        this.dataKeyId = keyProvider == null ? null : getKeyProviderPath(configuration) + "|" + keyName;
+        this.dataKeyLifetime = dataKeyLifetime;
+        this.required = required;
+    }
+
+    static TokenEncryption get(Configuration configuration) throws IOException {
+        boolean required = configuration.getBoolean(AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_REQUIRED, false);
+        String keyName = configuration.getTrimmed(AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KMS_KEY);
+        // the static key can still decrypt the records written before the key provider was configured
+        SecretKey staticKey = getStaticKey(configuration);
+        if (keyName != null && !keyName.isEmpty()) {
+            return new TokenEncryption(configuration, staticKey, getKeyProvider(configuration), keyName,
+                    configuration.getLong(AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KMS_DATA_KEY_LIFETIME, DEFAULT_KMS_DATA_KEY_LIFETIME),
+                    required);
+        }
+        if (staticKey != null) {
+            return new TokenEncryption(configuration, staticKey, null, null, 0, required);
+        }
+        if (required) {
+            throw new IOException("Token cache encryption is required but neither " + AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KMS_KEY
+                    + " nor " + TokenRecord.AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KEY + " is set.");
+        }
+        return PLAINTEXT;
+    }
+
+    /**
+     * @return the AES key encoded in base64 by "fs.azure.custom.token.cache.encryption.key", or null if it is not set.
+     */
+    private static SecretKey getStaticKey(Configuration configuration) throws IOException {
+        char[] encoded = configuration.getPassword(TokenRecord.AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KEY);
+        if (encoded == null || encoded.length == 0) {
+            return null;
+        }
+        byte[] key;
+        try {
+            key = Base64.getDecoder().decode(new String(encoded).trim());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid token cache encryption key, it must be encoded in base64.", e);
+        }
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IOException("Invalid token cache encryption key, it must be 16, 24 or 32 bytes long.");
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static String getKeyProviderPath(Configuration configuration) {
+        return configuration.getTrimmed(CommonConfigurationKeysPublic.HADOOP_SECURITY_KEY_PROVIDER_PATH);
+    }
+
+    private static KeyProviderCryptoExtension getKeyProvider(Configuration configuration) throws IOException {
+        String path = getKeyProviderPath(configuration);
+        if (path == null || path.isEmpty()) {
+            throw new IOException(AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KMS_KEY + " is set but no key provider is configured in "
+                    + CommonConfigurationKeysPublic.HADOOP_SECURITY_KEY_PROVIDER_PATH);
+        }
+        KeyProviderCryptoExtension keyProvider = KEY_PROVIDERS.get(path);
+        if (keyProvider == null) {
+            KeyProvider provider = KMSUtil.createKeyProvider(configuration, CommonConfigurationKeysPublic.HADOOP_SECURITY_KEY_PROVIDER_PATH);
+            KeyProviderCryptoExtension created = KeyProviderCryptoExtension.createKeyProviderCryptoExtension(provider);
+            keyProvider = KEY_PROVIDERS.putIfAbsent(path, created);
+            if (keyProvider == null) {
+                keyProvider = created;
+            }
+        }
+        return keyProvider;
+    }
+
+    boolean isRequired() {
+        return required;
+    }
+
+    /**
+     * @return the key to encrypt a record with, or null to write it in plain text.
+     */
+    DataKey getWriteKey() throws IOException {
+        if (keyProvider == null) {
+            return staticKey == null ? null : new DataKey(staticKey, null, 0);
+        }
+        DataKey dataKey = DATA_KEYS.get(dataKeyId);
+        if (dataKey == null || dataKey.createdTime < System.currentTimeMillis() - dataKeyLifetime) {
+            dataKey = generateDataKey();
+            DATA_KEYS.put(dataKeyId, dataKey);
+        }
+        return dataKey;
+    }
+
+    private DataKey generateDataKey() throws IOException {
+        EncryptedKeyVersion encrypted;
+        try {
+            encrypted = keyProvider.generateEncryptedKey(keyName);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to generate a token cache data key with key " + keyName, e);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeUTF(encrypted.getEncryptionKeyName());
+        data.writeUTF(encrypted.getEncryptionKeyVersionName());
+        writeBytes(data, encrypted.getEncryptedKeyIv());
+        writeBytes(data, encrypted.getEncryptedKeyVersion().getMaterial());
+        data.flush();
+        byte[] wrapped = out.toByteArray();
+        SecretKey key = unwrap(wrapped);
+        LOG.debug("Generated a token cache data key with {}", encrypted.getEncryptionKeyVersionName());
+        return new DataKey(key, wrapped, System.currentTimeMillis());
+    }
+
+    /**
+     * @param wrapped the data key stored in the record, or null if the record is encrypted with the static key.
+     */
+    SecretKey getReadKey(byte[] wrapped) throws IOException {
+        if (wrapped == null) {
+            if (staticKey == null) {
+                throw new IOException("Token record is encrypted but no key is configured in "
+                        + TokenRecord.AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KEY);
+            }
+            return staticKey;
+        }
+        if (keyProvider == null) {
+            throw new IOException("Token record is encrypted with a data key but no key provider is configured in "
+                    + AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KMS_KEY);
+        }
+        return unwrap(wrapped);
+    }
+
+    private SecretKey unwrap(byte[] wrapped) throws IOException {
+        ByteBuffer id = ByteBuffer.wrap(wrapped);
+        SecretKey key = UNWRAPPED_KEYS.get(id);
+        if (key != null) {
+            return key;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(wrapped));
+        String name = in.readUTF();
+        String versionName = in.readUTF();
+        byte[] iv = readBytes(in);
+        byte[] material = readBytes(in);
+        try {
+            key = new SecretKeySpec(keyProvider.decryptEncryptedKey(
+                    EncryptedKeyVersion.createForDecryption(name, versionName, iv, material)).getMaterial(), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to decrypt the token cache data key with " + versionName, e);
+        }
+        if (UNWRAPPED_KEYS.size() >= MAX_UNWRAPPED_KEYS) {
+            UNWRAPPED_KEYS.clear();
+        }
+        UNWRAPPED_KEYS.put(id, key);
+        return key;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * A key encrypting the records, with its wrapped form stored in them when it comes from the key provider.
+     */
+    static final class DataKey {
+
+        private final SecretKey key;
+
+        private final byte[] wrapped;
+
+        private final long createdTime;
+
+        private DataKey(SecretKey key, byte[] wrapped, long createdTime) {
+            this.key = key;
+            this.wrapped = wrapped;
+            this.createdTime = createdTime;
+        }
+
+        SecretKey getKey() {
+            return key;
+        }
+
+        byte[] getWrapped() {
+            return wrapped;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.*;
+import static org.apache.hadoop.fs.azurebfs.constants.FileSystemConfigurations.*;
+
+/**
+ * Retries the token requests to an endpoint with an exponential backoff.
+ * The retry state is kept per call, and no lock is held while waiting for the backoff.
+ * The retries of all the threads are limited by a budget shared per endpoint, so that
+ * a throttled endpoint doesn't receive several times the normal number of requests.
+ */
+final class TokenFetchRetryEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenFetchRetryEngine.class);
+
+    public static final String AZURE_CUSTOM_TOKEN_FETCH_RETRY_BUDGET_RATIO = "fs.azure.custom.token.fetch.retry.budget.ratio";
+    public static final String AZURE_CUSTOM_TOKEN_FETCH_RETRY_BUDGET_RESERVE = "fs.azure.custom.token.fetch.retry.budget.reserve";
+    public static final float DEFAULT_RETRY_BUDGET_RATIO = 0.2f;
+    public static final int DEFAULT_RETRY_BUDGET_RESERVE = 10;
+
+    /**
+     *  The minimum random ratio used for delay interval calculation.
+     */
+    private static final double MIN_RANDOM_RATIO = 0.8;
+
+    /**
+     *  The maximum random ratio used for delay interval calculation.
+     */
+    private static final double MAX_RANDOM_RATIO = 1.2;
+
+    private static final Map<String, RetryBudget> BUDGETS = new ConcurrentHashMap<>();
+
+    /**
+     * A single request to the endpoint.
+     */
+    interface TokenFetch {
+        AzureADToken fetch() throws IOException;
+    }
+
+    private final int minBackoffInterval;
+
+    private final int maxBackoffInterval;
+
+    private final int backoffInterval;
+
+    private final int maxRetryCount;
+
+    private final CircuitBreaker circuitBreaker;
+
+    private final RetryBudget retryBudget;
+
+    private final TokenProviderMetrics metrics;
+
+    TokenFetchRetryEngine(Configuration configuration, String endpoint) {
+        this.minBackoffInterval = configuration.getInt(AZURE_MIN_BACKOFF_INTERVAL, DEFAULT_MIN_BACKOFF_INTERVAL);
+        this.maxBackoffInterval = configuration.getInt(AZURE_MAX_BACKOFF_INTERVAL, DEFAULT_MAX_BACKOFF_INTERVAL);
+        this.backoffInterval = configuration.getInt(AZURE_BACKOFF_INTERVAL, DEFAULT_BACKOFF_INTERVAL);
+        this.maxRetryCount = configuration.getInt(AZURE_CUSTOM_TOKEN_FETCH_RETRY_COUNT, DEFAULT_CUSTOM_TOKEN_FETCH_RETRY_COUNT);
+        this.circuitBreaker = CircuitBreaker.get(configuration, endpoint);
+        RetryBudget budget = BUDGETS.get(endpoint);
+        if (budget == null) {
+            RetryBudget created = new RetryBudget(
+                    configuration.getFloat(AZURE_CUSTOM_TOKEN_FETCH_RETRY_BUDGET_RATIO, DEFAULT_RETRY_BUDGET_RATIO),
+                    configuration.getInt(AZURE_CUSTOM_TOKEN_FETCH_RETRY_BUDGET_RESERVE, DEFAULT_RETRY_BUDGET_RESERVE));
+            budget = BUDGETS.putIfAbsent(endpoint, created);
+            if (budget == null) {
+                budget = created;
+            }
+        }
+        this.retryBudget = budget;
+        this.metrics = TokenProviderMetrics.get(configuration);
+    }
+
+    /**
+     * Runs the request in the calling thread, sleeping between the attempts.
+     * @param lastKnownGoodToken served instead of failing while the circuit breaker is open.
+     */
+    AzureADToken execute(TokenFetch fetch, AzureADToken lastKnownGoodToken) throws IOException {
+        retryBudget.onRequest();
+        for (int retryCount = 0; ; retryCount++) {
+            if (!circuitBreaker.tryAcquire()) {
+                metrics.incrCircuitBreakerRejections();
+                return circuitBreaker.failFast(lastKnownGoodToken);
+            }
+            long start = System.nanoTime();
+            AzureADToken token;
+            try {
+                token = fetch.fetch();
+            } catch (IOException e) {
+                metrics.addRemoteFetch(start, e);
+                circuitBreaker.onFailure(e);
+                long waitInterval = onFailure(e, retryCount);
+                LOG.error("Wait for retry in " + Math.round(waitInterval / 1000) + " sec.");
+                try {
+                    Thread.sleep(waitInterval);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting for retry.");
+                    interrupted.initCause(e);
+                    throw interrupted;
+                }
+                continue;
+            } catch (RuntimeException | Error e) {
+                circuitBreaker.onFailure(e);
+                throw e;
+            }
+            metrics.addRemoteFetch(start, null);
+            circuitBreaker.onSuccess();
+            return token;
+        }
+    }
+
+    /**
+     * Runs the attempts on the executor, and waits for the backoff on the shared scheduler
+     * instead of blocking a thread.
+     */
+    CompletableFuture<AzureADToken> executeAsync(TokenFetch fetch, AzureADToken lastKnownGoodToken, Executor executor) {
+        retryBudget.onRequest();
+        CompletableFuture<AzureADToken> result = new CompletableFuture<>();
+        attemptAsync(fetch, lastKnownGoodToken, executor, result, 0);
+        return result;
+    }
+
+    private void attemptAsync(final TokenFetch fetch, final AzureADToken lastKnownGoodToken, final Executor executor,
+                              final CompletableFuture<AzureADToken> result, final int retryCount) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isDone()) { // cancelled by the caller
+                    return;
+                }
+                try {
+                    if (!circuitBreaker.tryAcquire()) {
+                        metrics.incrCircuitBreakerRejections();
+                        result.complete(circuitBreaker.failFast(lastKnownGoodToken));
+                        return;
+                    }
+                    AzureADToken token;
+                    long start = System.nanoTime();
+                    try {
+                        token = fetch.fetch();
+                        metrics.addRemoteFetch(start, null);
+                    } catch (IOException e) {
+                        metrics.addRemoteFetch(start, e);
+                        circuitBreaker.onFailure(e);
+                        long waitInterval = onFailure(e, retryCount);
+                        LOG.error("Wait for retry in " + Math.round(waitInterval / 1000) + " sec.");
+                        TokenRefreshScheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                attemptAsync(fetch, lastKnownGoodToken, executor, result, retryCount + 1);
+                            }
+                        }, waitInterval);
+                        return;
+                    } catch (RuntimeException | Error e) {
+                        circuitBreaker.onFailure(e);
+                        throw e;
+                    }
+                    circuitBreaker.onSuccess();
+                    result.complete(token);
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the wait interval before the next attempt.
+     * @throws IOException the failure of the request, if it should not be retried.
+     */
+    private long onFailure(IOException e, int retryCount) throws IOException {
+        LOG.error("get access token from remote server failed with exception. " + e.toString());
+        if (retryCount >= maxRetryCount) {
+            throw e;
+        }
+        if (circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+            LOG.error("Circuit breaker is open, do not retry.");
+            throw e;
+        }
+        if (!retryBudget.tryRetry()) {
+            LOG.error("Retry budget is exhausted, do not retry.");
+            throw e;
+        }
+        long waitInterval = getWaitInterval(retryCount + 1);
+        metrics.addRetry(waitInterval);
+        return waitInterval;
+    }
+
+    long getWaitInterval(final int retryCount) {
+        final long boundedRandDelta = (int) (this.backoffInterval * MIN_RANDOM_RATIO)
+                + ThreadLocalRandom.current().nextInt((int) (this.backoffInterval * MAX_RANDOM_RATIO)
+                - (int) (this.backoffInterval * MIN_RANDOM_RATIO));
+
+        final double incrementDelta = (Math.pow(2, retryCount - 1)) * boundedRandDelta;
+
+        final long retryInterval = (int) Math.round(Math.min(this.minBackoffInterval + incrementDelta, maxBackoffInterval));
+
+        return retryInterval;
+    }
+
+    /**
+     * Every request adds the ratio to the budget, up to the reserve, and every retry takes one from it.
+     * Amounts are kept in hundredths so that they can be updated atomically as integers.
+     */
+    private static final class RetryBudget {
+
+        private static final int SCALE = 100;
+
+        private final int deposit;
+
+        private final int capacity;
+
+        private final AtomicInteger balance;
+
+        RetryBudget(float ratio, int reserve) {
+            this.deposit = Math.round(ratio * SCALE);
+            this.capacity = reserve * SCALE;
+            this.balance = new AtomicInteger(capacity);
+        }
+
+        void onRequest() {
+            int current;
+            do {
+                current = balance.get();
+                if (current >= capacity) {
+                    return;
+                }
+            } while (!balance.compareAndSet(current, Math.min(capacity, current + deposit)));
+        }
+
+        boolean tryRetry() {
+            int current;
+            do {
+                current = balance.get();
+                if (current < SCALE) {
+                    return false;
+                }
+            } while (!balance.compareAndSet(current, current - SCALE));
+            return true;
+        }
+    }
+}
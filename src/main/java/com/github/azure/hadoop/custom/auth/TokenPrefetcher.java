@@ -0,0 +1,188 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.extensions.CustomTokenProviderAdaptee;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.FS_AZURE_ACCOUNT_OAUTH_CLIENT_ID;
+
+/**
+ * Fetches the tokens of several storage accounts and identities in parallel, so that a job touching many accounts
+ * doesn't fetch them one after the other on its first I/Os. The tokens are loaded in the shared cache of the providers,
+ * where the providers created later by ABFS find them. The token of an identity is fetched once, even if several
+ * storage accounts use it.
+ * The cached providers start it once per JVM when "fs.azure.custom.token.prefetch.accounts"
+ * or "fs.azure.custom.token.prefetch.client.ids" is set.
+ */
+public final class TokenPrefetcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenPrefetcher.class);
+
+    public static final String AZURE_CUSTOM_TOKEN_PREFETCH_ACCOUNTS = "fs.azure.custom.token.prefetch.accounts";
+    public static final String AZURE_CUSTOM_TOKEN_PREFETCH_CLIENT_IDS = "fs.azure.custom.token.prefetch.client.ids";
+    public static final String AZURE_CUSTOM_TOKEN_PREFETCH_CONCURRENCY = "fs.azure.custom.token.prefetch.concurrency";
+    public static final int DEFAULT_PREFETCH_CONCURRENCY = 8;
+
+    // provider classes whose configured prefetch has already been started
+    private static final Set<String> STARTED = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // one prefetched provider per identity is kept, the shared token is only refreshed in background while a provider is alive
+    private static final Map<String, AzureADTokenProvider> PREFETCHED = new ConcurrentHashMap<>();
+
+    private TokenPrefetcher() {
+    }
+
+    /**
+     * Starts the prefetch configured for the provider class, if it is not already started in the JVM.
+     */
+    static void prefetchConfigured(Class<? extends AzureADTokenProvider> providerClass, Configuration configuration, String accountName) {
+        Collection<String> accountNames = configuration.getTrimmedStringCollection(AZURE_CUSTOM_TOKEN_PREFETCH_ACCOUNTS);
+        Collection<String> clientIds = configuration.getTrimmedStringCollection(AZURE_CUSTOM_TOKEN_PREFETCH_CLIENT_IDS);
+        if ((accountNames.isEmpty() && clientIds.isEmpty()) || !STARTED.add(providerClass.getName())) {
+            return;
+        }
+        prefetch(providerClass, configuration, accountNames, clientIds, accountName).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable failure) {
+                if (failure != null) {
+                    LOG.error("Failed to prefetch some tokens, they will be fetched when they are used. " + failure.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches the tokens with a new provider of the class per identity of the storage accounts and client ids,
+     * through {@link AsyncAccessTokenProvider}, with at most "fs.azure.custom.token.prefetch.concurrency" fetches in flight.
+     * @param accountNames the storage accounts, each provider is initialized with one of them.
+     * @param clientIds the client ids, each provider is initialized with one of them and the given account.
+     * @return a future completed when all the tokens are fetched, or with the first failure.
+     */
+    public static CompletableFuture<Void> prefetch(Class<? extends AzureADTokenProvider> providerClass, Configuration configuration,
+                                                   Collection<String> accountNames, Collection<String> clientIds, String accountName) {
+        // the identity doesn't depend on the storage account, the providers of the same identity share one token
+        Set<String> identityKeys = new HashSet<>();
+        final List<Fetch> fetches = new ArrayList<>();
+        for (String name : accountNames) {
+            addFetch(fetches, identityKeys, providerClass, configuration, name);
+        }
+        for (String clientId : clientIds) {
+            Configuration identityConfiguration = new Configuration(configuration);
+            identityConfiguration.set(FS_AZURE_ACCOUNT_OAUTH_CLIENT_ID, clientId);
+            addFetch(fetches, identityKeys, providerClass, identityConfiguration, accountName);
+        }
+        // each chain fetches its tokens one after the other, so that the number of fetches in flight is bounded
+        int chains = Math.max(1, Math.min(configuration.getInt(AZURE_CUSTOM_TOKEN_PREFETCH_CONCURRENCY, DEFAULT_PREFETCH_CONCURRENCY),
+                fetches.size()));
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<CompletableFuture<Void>> tokens = new ArrayList<>();
+        for (int i = 0; i < chains; i++) {
+            CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+            for (int j = i; j < fetches.size(); j += chains) {
+                final Fetch fetch = fetches.get(j);
+                chain = chain.thenCompose(new Function<Void, CompletableFuture<Void>>() {
+                    @Override
+                    public CompletableFuture<Void> apply(Void previous) {
+                        return fetch.start(failure);
+                    }
+                });
+            }
+            tokens.add(chain);
+        }
+        LOG.debug("Prefetching {} tokens with {} fetches in flight.", fetches.size(), chains);
+        return CompletableFuture.allOf(tokens.toArray(new CompletableFuture<?>[0])).thenApply(new Function<Void, Void>() {
+            @Override
+            public Void apply(Void result) {
+                if (failure.get() != null) {
+                    throw new CompletionException(failure.get());
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Adds the fetch of the token with a new provider, unless the token of its identity is already fetched.
+     */
+    private static void addFetch(List<Fetch> fetches, Set<String> identityKeys, Class<? extends AzureADTokenProvider> providerClass,
+                                 Configuration configuration, String accountName) {
+        AzureADTokenProvider provider = ReflectionUtils.newInstance(providerClass, configuration);
+        String identityKey = null;
+        if (provider instanceof CachedAccessTokenProvider) {
+            CustomTokenProviderAdaptee impl = ((CachedAccessTokenProvider) provider).getImpl();
+            identityKey = TokenRegistry.getIdentityKey(configuration,
+                    impl == null ? CachedAccessTokenProvider.newProvider(configuration) : impl);
+            if (!identityKeys.add(identityKey)) {
+                LOG.debug("Token of {} is already prefetched for another storage account.", accountName);
+                return;
+            }
+        }
+        fetches.add(new Fetch(provider, identityKey, configuration, accountName));
+    }
+
+    /**
+     * The fetch of the token of one identity.
+     */
+    private static final class Fetch {
+
+        private final AzureADTokenProvider provider;
+
+        private final String identityKey;
+
+        private final Configuration configuration;
+
+        private final String accountName;
+
+        Fetch(AzureADTokenProvider provider, String identityKey, Configuration configuration, String accountName) {
+            this.provider = provider;
+            this.identityKey = identityKey;
+            this.configuration = configuration;
+            this.accountName = accountName;
+        }
+
+        /**
+         * Starts the fetch, a failure is kept if it is the first one and the returned future completes normally.
+         */
+        CompletableFuture<Void> start(final AtomicReference<Throwable> failure) {
+            CompletableFuture<AzureADToken> token;
+            try {
+                AsyncAccessTokenProvider async = new AsyncAccessTokenProvider(provider);
+                async.initialize(configuration, accountName);
+                if (identityKey != null) {
+                    PREFETCHED.putIfAbsent(identityKey, provider);
+                }
+                token = async.getAzureADTokenAsync();
+            } catch (Exception e) {
+                token = new CompletableFuture<>();
+                token.completeExceptionally(e);
+            }
+            return token.handle(new BiFunction<AzureADToken, Throwable, Void>() {
+                @Override
+                public Void apply(AzureADToken result, Throwable e) {
+                    if (e != null) {
+                        failure.compareAndSet(null, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+}
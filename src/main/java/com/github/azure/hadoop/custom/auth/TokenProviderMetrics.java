@@ -0,0 +1,152 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADAuthenticator;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.metrics2.lib.MutableQuantiles;
+import org.apache.hadoop.metrics2.lib.MutableRate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Metrics of all the token providers of the JVM: where the tokens are served from, the requests to Azure AD
+ * or Azure Instance Metadata Service, their retries and the time spent waiting for them.
+ * They are always counted, and published when enabled through the default Hadoop metrics system of the process:
+ * the one of the daemon if it already runs one, otherwise it is started with the prefix "azure-token-provider",
+ * so they can be sent to the sinks of hadoop-metrics2-azure-token-provider.properties.
+ */
+final class TokenProviderMetrics implements MetricsSource {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenProviderMetrics.class);
+
+    public static final String AZURE_CUSTOM_TOKEN_METRICS_ENABLED = "fs.azure.custom.token.metrics.enabled";
+
+    static final String METRICS_SYSTEM_NAME = "azure-token-provider";
+    private static final String SOURCE_NAME = "AzureTokenProvider";
+    private static final int QUANTILES_INTERVAL = 60;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static volatile TokenProviderMetrics instance;
+    private static final ReentrantLock INSTANCE_LOCK = new ReentrantLock();
+
+    private final MetricsRegistry registry = new MetricsRegistry(SOURCE_NAME).setContext("azure");
+
+    private final MutableCounterLong memoryHits = registry.newCounter("MemoryHits",
+            "Tokens served from memory", 0L);
+    private final MutableCounterLong cacheHits = registry.newCounter("CacheHits",
+            "Tokens loaded from the HDFS, file or memory mapped cache", 0L);
+    private final MutableCounterLong cacheMisses = registry.newCounter("CacheMisses",
+            "Lookups of the HDFS, file or memory mapped cache without a valid token", 0L);
+    private final MutableCounterLong cacheWriteFailures = registry.newCounter("CacheWriteFailures",
+            "Tokens which could not be written to the cache", 0L);
+    private final MutableCounterLong remoteFetches = registry.newCounter("RemoteFetches",
+            "Requests to Azure AD or Azure Instance Metadata Service", 0L);
+    private final MutableCounterLong remoteFetchFailures = registry.newCounter("RemoteFetchFailures",
+            "Failed requests to Azure AD or Azure Instance Metadata Service", 0L);
+    private final MutableCounterLong throttledFetches = registry.newCounter("ThrottledFetches",
+            "Requests rejected with HTTP 429", 0L);
+    private final MutableCounterLong retries = registry.newCounter("Retries",
+            "Retried requests", 0L);
+    private final MutableCounterLong circuitBreakerRejections = registry.newCounter("CircuitBreakerRejections",
+            "Requests not sent because the circuit breaker is open", 0L);
+    private final MutableRate remoteFetchTime = registry.newRate("RemoteFetchTime",
+            "Time of the requests to Azure AD or Azure Instance Metadata Service in milliseconds", false);
+    private final MutableQuantiles remoteFetchTimeQuantiles = registry.newQuantiles("RemoteFetchTime60s",
+            "Time of the requests to Azure AD or Azure Instance Metadata Service in milliseconds", "ops", "latency",
+            QUANTILES_INTERVAL);
+    private final MutableRate backoffTime = registry.newRate("BackoffTime",
+            "Time waited before retrying a request in milliseconds", false);
+    private final MutableRate lockWaitTime = registry.newRate("LockWaitTime",
+            "Time waited for another thread refreshing the token in milliseconds", false);
+
+    private TokenProviderMetrics() {
+    }
+
+    /**
+     * Returns the metrics of the JVM, they are published if enabled in the configuration of the first provider.
+     */
+    static TokenProviderMetrics get(Configuration configuration) {
+        TokenProviderMetrics result = instance;
+        if (result == null) {
+            INSTANCE_LOCK.lock();
+            try {
+                result = instance;
+                if (result == null) {
+                    result = new TokenProviderMetrics();
+                    if (configuration.getBoolean(AZURE_CUSTOM_TOKEN_METRICS_ENABLED, false)) {
+                        try {
+                            DefaultMetricsSystem.initialize(METRICS_SYSTEM_NAME)
+                                    .register(SOURCE_NAME, "Azure token provider metrics", result);
+                        } catch (Exception e) {
+                            LOG.error("Failed to register token provider metrics, they are not published.", e);
+                        }
+                    }
+                    instance = result;
+                }
+            } finally {
+                INSTANCE_LOCK.unlock();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void getMetrics(MetricsCollector collector, boolean all) {
+        registry.snapshot(collector.addRecord(registry.info()), all);
+    }
+
+    void incrMemoryHits() {
+        memoryHits.incr();
+    }
+
+    void incrCacheHits() {
+        cacheHits.incr();
+    }
+
+    void incrCacheMisses() {
+        cacheMisses.incr();
+    }
+
+    void incrCacheWriteFailures() {
+        cacheWriteFailures.incr();
+    }
+
+    void incrCircuitBreakerRejections() {
+        circuitBreakerRejections.incr();
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} when the request was sent.
+     * @param failure the failure of the request, or null if it succeeded.
+     */
+    void addRemoteFetch(long startNanos, IOException failure) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        remoteFetches.incr();
+        remoteFetchTime.add(millis);
+        remoteFetchTimeQuantiles.add(millis);
+        if (failure != null) {
+            remoteFetchFailures.incr();
+            if (failure instanceof AzureADAuthenticator.HttpException
+                    && ((AzureADAuthenticator.HttpException) failure).getHttpErrorCode() == HTTP_TOO_MANY_REQUESTS) {
+                throttledFetches.incr();
+            }
+        }
+    }
+
+    void addRetry(long waitMillis) {
+        retries.incr();
+        backoffTime.add(waitMillis);
+    }
+
+    void addLockWait(long startNanos) {
+        lockWaitTime.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+}
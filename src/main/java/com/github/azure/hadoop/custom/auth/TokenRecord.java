@@ -0,0 +1,206 @@
+package com.github.azure.hadoop.custom.auth;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.zip.CRC32;
+
+/**
+ * Binary format of the token files, so that a reader can validate and reject a file from its header with one small read:
+ * <pre>
+ *  0  magic "AZTR"        4 bytes
+ *  4  version             1 byte
+ *  5  flags               1 byte, 1 if the payload is encrypted, 2 if it starts with the wrapped data key
+ *  6  identity hash       8 bytes
+ * 14  issued time         8 bytes, epoch millis
+ * 22  expiry time         8 bytes, epoch millis
+ * 30  payload length      4 bytes
+ * 34  CRC32               4 bytes, of the header before it and the payload
+ * 38  payload             the UTF-8 token, or the AES-GCM nonce followed by the encrypted token, preceded by
+ *                         the length on 2 bytes and the data key wrapped by the key provider when it is used
+ * </pre>
+ * The encryption keys are given by {@link TokenEncryption}.
+ */
+final class TokenRecord {
+
+    public static final String AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KEY = "fs.azure.custom.token.cache.encryption.key";
+
+    static final int MAGIC = 0x415A5452;
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 38;
+
+    // the header before the payload length is authenticated with the encrypted token
+    private static final int LENGTH_OFFSET = 30;
+    private static final int CRC_OFFSET = 34;
+    private static final byte FLAG_ENCRYPTED = 1;
+    private static final byte FLAG_WRAPPED_KEY = 2;
+
+    // a token is a few KB, a larger length is a corrupted file
+    private static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH_BITS = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private TokenRecord() {
+    }
+
+    static byte[] encode(long identityHash, CachedToken token, TokenEncryption encryption) throws IOException {
+        byte[] payload = token.getToken().getBytes(StandardCharsets.UTF_8);
+        TokenEncryption.DataKey key = encryption.getWriteKey();
+        byte[] wrapped = key == null ? null : key.getWrapped();
+        byte flags = 0;
+        if (key != null) {
+            flags |= FLAG_ENCRYPTED;
+            if (wrapped != null) {
+                flags |= FLAG_WRAPPED_KEY;
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put(VERSION).put(flags)
+                .putLong(identityHash).putLong(System.currentTimeMillis()).putLong(token.getExpiryTime());
+        if (key != null) {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            RANDOM.nextBytes(nonce);
+            // so that an encrypted token cannot be moved to another identity or expiry time
+            byte[] encrypted = crypt(Cipher.ENCRYPT_MODE, key.getKey(), nonce, header.array(), LENGTH_OFFSET, payload);
+            ByteBuffer buffer = ByteBuffer.allocate((wrapped == null ? 0 : 2 + wrapped.length) + NONCE_LENGTH + encrypted.length);
+            if (wrapped != null) {
+                buffer.putShort((short) wrapped.length).put(wrapped);
+            }
+            payload = buffer.put(nonce).put(encrypted).array();
+        }
+        header.putInt(payload.length);
+        header.putInt(crc(header.array(), payload));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + payload.length);
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(header.array());
+        data.write(payload);
+        data.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the header of the record, or null if the data doesn't start with a record, e.g. a file of an older version.
+     */
+    static Header readHeader(DataInput in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        in.readFully(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported token record version " + version);
+        }
+        return new Header(header);
+    }
+
+    /**
+     * Reads the payload following the header, checks its integrity and decrypts it.
+     */
+    static CachedToken readToken(DataInput in, Header header, TokenEncryption encryption) throws IOException {
+        int length = header.getPayloadLength();
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid token record, payload length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (crc(header.bytes, payload) != header.getCrc()) {
+            throw new IOException("Invalid token record, CRC mismatch");
+        }
+        if (!header.isEncrypted()) {
+            if (encryption.isRequired()) {
+                throw new IOException("Token record is not encrypted, it is rejected as "
+                        + TokenEncryption.AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_REQUIRED + " is set");
+            }
+            return new CachedToken(new String(payload, StandardCharsets.UTF_8), header.getExpiryTime());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte[] wrapped = null;
+        if (header.hasWrappedKey()) {
+            if (length < 2 || length < 2 + (buffer.getShort(0) & 0xFFFF)) {
+                throw new IOException("Invalid token record, data key is truncated");
+            }
+            wrapped = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(wrapped);
+        }
+        if (buffer.remaining() < NONCE_LENGTH) {
+            throw new IOException("Invalid token record, nonce is missing");
+        }
+        SecretKey key = encryption.getReadKey(wrapped);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        buffer.get(nonce);
+        byte[] encrypted = new byte[buffer.remaining()];
+        buffer.get(encrypted);
+        payload = crypt(Cipher.DECRYPT_MODE, key, nonce, header.bytes, LENGTH_OFFSET, encrypted);
+        return new CachedToken(new String(payload, StandardCharsets.UTF_8), header.getExpiryTime());
+    }
+
+    private static byte[] crypt(int mode, SecretKey key, byte[] nonce, byte[] header, int headerLength, byte[] input)
+            throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH_BITS, nonce));
+            cipher.updateAAD(header, 0, headerLength);
+            return cipher.doFinal(input);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to " + (mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt") + " token record", e);
+        }
+    }
+
+    private static int crc(byte[] header, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, CRC_OFFSET);
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    static final class Header {
+
+        private final byte[] bytes;
+
+        private final ByteBuffer buffer;
+
+        private Header(byte[] bytes) {
+            this.bytes = bytes;
+            this.buffer = ByteBuffer.wrap(bytes);
+        }
+
+        boolean isEncrypted() {
+            return (bytes[5] & FLAG_ENCRYPTED) != 0;
+        }
+
+        boolean hasWrappedKey() {
+            return (bytes[5] & FLAG_WRAPPED_KEY) != 0;
+        }
+
+        long getIdentityHash() {
+            return buffer.getLong(6);
+        }
+
+        long getExpiryTime() {
+            return buffer.getLong(22);
+        }
+
+        int getPayloadLength() {
+            return buffer.getInt(LENGTH_OFFSET);
+        }
+
+        int getCrc() {
+            return buffer.getInt(CRC_OFFSET);
+        }
+    }
+}
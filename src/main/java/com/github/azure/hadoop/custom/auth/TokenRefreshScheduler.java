@@ -0,0 +1,50 @@
+package com.github.azure.hadoop.custom.auth;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Daemon scheduler shared by all token providers in the JVM to refresh tokens in the background.
+ */
+final class TokenRefreshScheduler {
+
+    private static final String THREAD_NAME = "azure-token-refresher";
+
+    private static volatile ScheduledExecutorService executor;
+    private static final ReentrantLock EXECUTOR_LOCK = new ReentrantLock();
+
+    private TokenRefreshScheduler() {
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return getExecutor().schedule(task, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    private static ScheduledExecutorService getExecutor() {
+        ScheduledExecutorService result = executor;
+        if (result == null) {
+            EXECUTOR_LOCK.lock();
+            try {
+                result = executor;
+                if (result == null) {
+                    result = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, THREAD_NAME);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    executor = result;
+                }
+            } finally {
+                EXECUTOR_LOCK.unlock();
+            }
+        }
+        return result;
+    }
+}
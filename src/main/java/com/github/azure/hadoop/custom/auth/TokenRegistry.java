@@ -0,0 +1,212 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.extensions.CustomTokenProviderAdaptee;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.*;
+
+/**
+ * JVM wide registry of tokens, shared by all the provider instances with the same identity,
+ * so that one identity is fetched once no matter how many file system instances are created.
+ */
+final class TokenRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenRegistry.class);
+
+    public static final String AZURE_CUSTOM_TOKEN_REGISTRY_MAX_ENTRIES = "fs.azure.custom.token.registry.max.entries";
+    public static final String AZURE_CUSTOM_TOKEN_REGISTRY_IDLE_TIMEOUT = "fs.azure.custom.token.registry.idle.timeout";
+    public static final int DEFAULT_REGISTRY_MAX_ENTRIES = 64;
+    public static final long DEFAULT_REGISTRY_IDLE_TIMEOUT = 24 * 3600 * 1000L;
+
+    // the last access time is only updated at this granularity, to avoid a shared write on every token read
+    private static final long ACCESS_TIME_GRANULARITY = 1000;
+
+    private static final Map<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+    private static final ReentrantLock EVICT_LOCK = new ReentrantLock();
+
+    private TokenRegistry() {
+    }
+
+    /**
+     * The identity of a token: the implementation plus the client id, tenant and endpoint it is requested with.
+     */
+    static String getIdentityKey(Configuration configuration, CustomTokenProviderAdaptee impl) {
+        return impl.getClass().getName()
+                + "|" + configuration.get(FS_AZURE_ACCOUNT_OAUTH_CLIENT_ID, "").trim()
+                + "|" + configuration.get(FS_AZURE_ACCOUNT_OAUTH_MSI_TENANT, "").trim()
+                + "|" + configuration.get(FS_AZURE_ACCOUNT_OAUTH_MSI_ENDPOINT, "").trim()
+                + "|" + configuration.get(FS_AZURE_ACCOUNT_OAUTH_CLIENT_ENDPOINT, "").trim();
+    }
+
+    static Entry getEntry(String identityKey, Configuration configuration) {
+        Entry entry = ENTRIES.get(identityKey);
+        if (entry == null) {
+            Entry created = new Entry(identityKey);
+            entry = ENTRIES.putIfAbsent(identityKey, created);
+            if (entry == null) {
+                entry = created;
+                LOG.debug("Token registry entry created for {}", identityKey);
+                evict(configuration.getInt(AZURE_CUSTOM_TOKEN_REGISTRY_MAX_ENTRIES, DEFAULT_REGISTRY_MAX_ENTRIES),
+                        configuration.getLong(AZURE_CUSTOM_TOKEN_REGISTRY_IDLE_TIMEOUT, DEFAULT_REGISTRY_IDLE_TIMEOUT),
+                        created);
+            }
+        }
+        entry.touch();
+        return entry;
+    }
+
+    static void clear() {
+        for (Entry entry : ENTRIES.values()) {
+            entry.cancelBackgroundRefresh();
+        }
+        ENTRIES.clear();
+    }
+
+    /**
+     * Removes the entries idle for longer than the timeout, then the least recently used ones above the size limit.
+     * A provider still holding an evicted entry keeps working with it, the entry is only no longer shared.
+     */
+    private static void evict(int maxEntries, long idleTimeout, Entry keep) {
+        EVICT_LOCK.lock();
+        try {
+            long idleSince = System.currentTimeMillis() - idleTimeout;
+            List<Entry> entries = new ArrayList<>(ENTRIES.values());
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    return Long.compare(a.lastAccessTime, b.lastAccessTime);
+                }
+            });
+            int size = entries.size();
+            for (Entry entry : entries) {
+                if (entry != keep && (size > maxEntries || entry.lastAccessTime < idleSince)) {
+                    if (ENTRIES.remove(entry.identityKey, entry)) {
+                        entry.cancelBackgroundRefresh();
+                        size--;
+                        LOG.debug("Token registry entry evicted for {}", entry.identityKey);
+                    }
+                }
+            }
+        } finally {
+            EVICT_LOCK.unlock();
+        }
+    }
+
+    /**
+     * The token of one identity and the state to refresh it.
+     */
+    static final class Entry {
+
+        private final String identityKey;
+
+        // token and expiry time are published together, so that readers don't need a lock
+        private volatile CachedToken token;
+
+        // serializes the refresh, only one thread goes to the cache and Azure AD at a time
+        private final ReentrantLock refreshLock = new ReentrantLock();
+
+        // replaced with the refresh lock held, cancelled on eviction
+        private volatile ScheduledFuture<?> backgroundRefreshTask;
+
+        // the providers sharing the entry, only weakly held so that the entry doesn't keep them alive
+        private final List<WeakReference<CachedAccessTokenProvider>> providers = new CopyOnWriteArrayList<>();
+
+        private volatile long lastAccessTime = System.currentTimeMillis();
+
+        // time of the last request to Azure AD, to enforce the minimum interval between fetches
+        private volatile long lastFetchTime;
+
+        private Entry(String identityKey) {
+            this.identityKey = identityKey;
+        }
+
+        String getIdentityKey() {
+            return identityKey;
+        }
+
+        CachedToken getToken() {
+            return token;
+        }
+
+        void setToken(CachedToken token) {
+            this.token = token;
+        }
+
+        long getLastFetchTime() {
+            return lastFetchTime;
+        }
+
+        void setLastFetchTime(long lastFetchTime) {
+            this.lastFetchTime = lastFetchTime;
+        }
+
+        ReentrantLock getRefreshLock() {
+            return refreshLock;
+        }
+
+        void touch() {
+            long now = System.currentTimeMillis();
+            if (now - lastAccessTime > ACCESS_TIME_GRANULARITY) {
+                lastAccessTime = now;
+            }
+        }
+
+        /**
+         * Registers a provider sharing the entry, the providers no longer alive are dropped.
+         */
+        void addProvider(CachedAccessTokenProvider provider) {
+            boolean registered = false;
+            List<WeakReference<CachedAccessTokenProvider>> collected = new ArrayList<>();
+            for (WeakReference<CachedAccessTokenProvider> reference : providers) {
+                CachedAccessTokenProvider registeredProvider = reference.get();
+                if (registeredProvider == null) {
+                    collected.add(reference);
+                } else if (registeredProvider == provider) {
+                    registered = true;
+                }
+            }
+            providers.removeAll(collected);
+            if (!registered) {
+                providers.add(new WeakReference<>(provider));
+            }
+        }
+
+        /**
+         * @return a provider sharing the entry which is still alive, or null if there is none.
+         */
+        CachedAccessTokenProvider getProvider() {
+            for (WeakReference<CachedAccessTokenProvider> reference : providers) {
+                CachedAccessTokenProvider provider = reference.get();
+                if (provider != null) {
+                    return provider;
+                }
+            }
+            return null;
+        }
+
+        void setBackgroundRefreshTask(ScheduledFuture<?> task) {
+            cancelBackgroundRefresh();
+            this.backgroundRefreshTask = task;
+        }
+
+        private void cancelBackgroundRefresh() {
+            ScheduledFuture<?> task = this.backgroundRefreshTask;
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.FS_AZURE_ACCOUNT_OAUTH_CLIENT_ID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CachedAccessTokenProviderTest {
+
+    private static final long TIMEOUT = 10 * 1000;
+
+    @Before
+    public void setUp() {
+        TokenRegistry.clear();
+        StubTokenProvider.FETCHES.set(0);
+    }
+
+    @After
+    public void tearDown() {
+        TokenRegistry.clear();
+    }
+
+    @Test
+    public void testProvidersOfIdentityShareToken() throws IOException {
+        Configuration configuration = newConfiguration("shared");
+        String token = newProvider(configuration).getAccessToken();
+        assertEquals(token, newProvider(configuration).getAccessToken());
+        assertEquals(1, StubTokenProvider.FETCHES.get());
+
+        assertNotEquals(token, newProvider(newConfiguration("other")).getAccessToken());
+        assertEquals(2, StubTokenProvider.FETCHES.get());
+    }
+
+    @Test
+    public void testConcurrentCallersFetchOnce() throws Exception {
+        Configuration configuration = newConfiguration("concurrent");
+        configuration.setLong(StubTokenProvider.STUB_FETCH_DELAY, 200);
+        final CachedAccessTokenProvider provider = newProvider(configuration);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> tokens = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                tokens.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return provider.getAccessToken();
+                    }
+                }));
+            }
+            for (Future<String> token : tokens) {
+                assertEquals("token-1", token.get(TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, StubTokenProvider.FETCHES.get());
+    }
+
+    @Test
+    public void testExpiringTokenServedWhileRefreshing() throws Exception {
+        // the tokens of an hour are expiring as soon as they are fetched
+        Configuration configuration = newConfiguration("expiring");
+        configuration.setLong(DefaultRefreshPolicy.AZURE_CUSTOM_TOKEN_REFRESH_SKEW, 2 * 3600 * 1000);
+        configuration.setLong(StubTokenProvider.STUB_FETCH_DELAY, 500);
+        final CachedAccessTokenProvider provider = newProvider(configuration);
+        assertEquals("token-1", provider.getAccessToken());
+
+        Thread refreshing = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    provider.getAccessToken();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        refreshing.start();
+        awaitFetches(2);
+        long start = System.currentTimeMillis();
+        assertEquals("token-1", provider.getAccessToken());
+        assertTrue(System.currentTimeMillis() - start < 500);
+        refreshing.join(TIMEOUT);
+        assertEquals(2, StubTokenProvider.FETCHES.get());
+    }
+
+    @Test
+    public void testMinFetchIntervalLimitsRefetch() throws IOException {
+        Configuration configuration = newConfiguration("interval");
+        configuration.setLong(DefaultRefreshPolicy.AZURE_CUSTOM_TOKEN_REFRESH_SKEW, 2 * 3600 * 1000);
+        configuration.setLong(DefaultRefreshPolicy.AZURE_CUSTOM_TOKEN_REFRESH_MIN_INTERVAL, 3600 * 1000);
+        CachedAccessTokenProvider provider = newProvider(configuration);
+        assertEquals("token-1", provider.getAccessToken());
+        assertEquals("token-1", provider.getAccessToken());
+        assertEquals(1, StubTokenProvider.FETCHES.get());
+    }
+
+    @Test
+    public void testBackgroundRefresh() throws Exception {
+        Configuration configuration = newConfiguration("refreshed");
+        configuration.setLong(StubTokenProvider.STUB_TOKEN_LIFETIME, 1000);
+        configuration.setBoolean(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_ENABLED, true);
+        configuration.setFloat(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_LIFETIME_FRACTION, 0.5f);
+        configuration.setFloat(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_JITTER_FRACTION, 0);
+        CachedAccessTokenProvider provider = newProvider(configuration);
+        assertEquals("token-1", provider.getAccessToken());
+        awaitFetches(3);
+        // the token was refreshed before the callers see it expiring
+        assertNotEquals("token-1", provider.getAccessToken());
+        assertTrue(StubTokenProvider.FETCHES.get() >= 3);
+    }
+
+    @Test
+    public void testBackgroundRefreshOutlivesSchedulingProvider() throws Exception {
+        Configuration configuration = newConfiguration("background");
+        configuration.setLong(StubTokenProvider.STUB_TOKEN_LIFETIME, 2000);
+        configuration.setBoolean(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_ENABLED, true);
+        configuration.setFloat(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_LIFETIME_FRACTION, 0.5f);
+        configuration.setFloat(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_JITTER_FRACTION, 0);
+
+        CachedAccessTokenProvider scheduling = newProvider(configuration);
+        scheduling.getAzureADToken();
+        CachedAccessTokenProvider remaining = newProvider(configuration);
+        assertEquals(1, StubTokenProvider.FETCHES.get());
+
+        // the provider which scheduled the refresh is dropped, the other one keeps the token refreshed
+        WeakReference<CachedAccessTokenProvider> collected = new WeakReference<>(scheduling);
+        scheduling = null;
+        awaitCollected(collected);
+        awaitFetches(3);
+        assertTrue(remaining.getExpiryTime().getTime() > System.currentTimeMillis());
+    }
+
+    static Configuration newConfiguration(String clientId) {
+        Configuration configuration = new Configuration(false);
+        configuration.set(FS_AZURE_ACCOUNT_OAUTH_CLIENT_ID, clientId);
+        configuration.setClass(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_CACHE_PROVIDER, StubTokenProvider.class, AzureADTokenProvider.class);
+        configuration.set(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_CACHE_BACKENDS, "");
+        configuration.setBoolean(TokenCacheJanitor.AZURE_CUSTOM_TOKEN_JANITOR_ENABLED, false);
+        configuration.setBoolean(TokenProviderMetrics.AZURE_CUSTOM_TOKEN_METRICS_ENABLED, false);
+        configuration.setLong(DefaultRefreshPolicy.AZURE_CUSTOM_TOKEN_REFRESH_SKEW, 0);
+        configuration.setLong(DefaultRefreshPolicy.AZURE_CUSTOM_TOKEN_REFRESH_JITTER, 0);
+        configuration.setLong(DefaultRefreshPolicy.AZURE_CUSTOM_TOKEN_REFRESH_MIN_INTERVAL, 0);
+        return configuration;
+    }
+
+    static CachedAccessTokenProvider newProvider(Configuration configuration) throws IOException {
+        CachedAccessTokenProvider provider = new CachedAccessTokenProvider();
+        provider.initialize(configuration, "account");
+        return provider;
+    }
+
+    private static void awaitCollected(WeakReference<?> reference) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (reference.get() != null && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("The provider must be collected", reference.get());
+    }
+
+    private static void awaitFetches(int fetches) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (StubTokenProvider.FETCHES.get() < fetches && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Fetches: " + StubTokenProvider.FETCHES.get(), StubTokenProvider.FETCHES.get() >= fetches);
+    }
+}
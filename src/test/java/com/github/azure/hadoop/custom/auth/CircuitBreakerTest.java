@@ -0,0 +1,161 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADAuthenticator;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    private static final long RECOVERY_INTERVAL = 100;
+
+    @Test
+    public void testDisabledByDefault() {
+        CircuitBreaker breaker = CircuitBreaker.get(new Configuration(false), newEndpoint());
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure(new IOException("unreachable"));
+        }
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testSharedPerEndpoint() {
+        Configuration configuration = newConfiguration();
+        String endpoint = newEndpoint();
+        assertSame(CircuitBreaker.get(configuration, endpoint), CircuitBreaker.get(configuration, endpoint));
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveEndpointFailures() {
+        CircuitBreaker breaker = CircuitBreaker.get(newConfiguration(), newEndpoint());
+        failRequest(breaker, new IOException("unreachable"));
+        failRequest(breaker, httpError(503));
+        breaker.onSuccess();
+        // the count restarts after a success
+        failRequest(breaker, httpError(429));
+        failRequest(breaker, httpError(408));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        failRequest(breaker, httpError(500));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testClientErrorsAreNotCounted() {
+        CircuitBreaker breaker = CircuitBreaker.get(newConfiguration(), newEndpoint());
+        for (int i = 0; i < 10; i++) {
+            failRequest(breaker, httpError(400));
+            failRequest(breaker, new IllegalStateException("bug"));
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        IOException wrapped = new IOException("wrapped", httpError(404));
+        assertFalse(CircuitBreaker.isEndpointFailure(wrapped));
+    }
+
+    @Test
+    public void testHalfOpenLetsOneProbeThrough() throws InterruptedException {
+        CircuitBreaker breaker = open(newEndpoint());
+        Thread.sleep(RECOVERY_INTERVAL + 10);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testFailedProbeOpensAgain() throws InterruptedException {
+        CircuitBreaker breaker = open(newEndpoint());
+        Thread.sleep(RECOVERY_INTERVAL + 10);
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure(new IOException("still unreachable"));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testProbeWithClientErrorLetsNextProbeThrough() throws InterruptedException {
+        CircuitBreaker breaker = open(newEndpoint());
+        Thread.sleep(RECOVERY_INTERVAL + 10);
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure(new NullPointerException());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testProbeNotReportingIsReplaced() throws InterruptedException {
+        CircuitBreaker breaker = open(newEndpoint());
+        Thread.sleep(RECOVERY_INTERVAL + 10);
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        Thread.sleep(RECOVERY_INTERVAL + 10);
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testFailFastServesLastKnownGoodToken() throws IOException {
+        CircuitBreaker breaker = open(newEndpoint());
+        AzureADToken valid = newToken(System.currentTimeMillis() + 60 * 1000);
+        assertSame(valid, breaker.failFast(valid));
+        try {
+            breaker.failFast(newToken(System.currentTimeMillis() - 1));
+            fail("An expired token must not be served");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("open"));
+        }
+    }
+
+    private static CircuitBreaker open(String endpoint) {
+        CircuitBreaker breaker = CircuitBreaker.get(newConfiguration(), endpoint);
+        for (int i = 0; i < 3; i++) {
+            failRequest(breaker, new IOException("unreachable"));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    private static void failRequest(CircuitBreaker breaker, Throwable failure) {
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure(failure);
+    }
+
+    private static Configuration newConfiguration() {
+        Configuration configuration = new Configuration(false);
+        configuration.setBoolean(CircuitBreaker.AZURE_CUSTOM_TOKEN_CIRCUIT_BREAKER_ENABLED, true);
+        configuration.setInt(CircuitBreaker.AZURE_CUSTOM_TOKEN_CIRCUIT_BREAKER_FAILURE_THRESHOLD, 3);
+        configuration.setLong(CircuitBreaker.AZURE_CUSTOM_TOKEN_CIRCUIT_BREAKER_RECOVERY_INTERVAL, RECOVERY_INTERVAL);
+        return configuration;
+    }
+
+    /**
+     * The breakers are shared per endpoint in the JVM, each test uses its own.
+     */
+    static String newEndpoint() {
+        return "http://169.254.169.254/" + UUID.randomUUID();
+    }
+
+    static IOException httpError(int status) {
+        return new AzureADAuthenticator.HttpException(status, "request-id", "HTTP " + status, "http://endpoint", "application/json", "") {
+        };
+    }
+
+    private static AzureADToken newToken(long expiryTime) {
+        AzureADToken token = new AzureADToken();
+        token.setAccessToken("token");
+        token.setExpiry(new Date(expiryTime));
+        return token;
+    }
+}
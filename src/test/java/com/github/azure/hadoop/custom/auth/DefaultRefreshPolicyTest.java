@@ -0,0 +1,91 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultRefreshPolicyTest {
+
+    private static final long ONE_MINUTE = 60 * 1000;
+    private static final long ONE_HOUR = 60 * ONE_MINUTE;
+
+    @Test
+    public void testExpiringWithinSkew() {
+        DefaultRefreshPolicy policy = newPolicy(10 * ONE_MINUTE, 0, 0, 0.75f, 0);
+        long now = System.currentTimeMillis();
+        assertTrue(policy.isExpiring(now));
+        assertTrue(policy.isExpiring(now + 9 * ONE_MINUTE));
+        assertFalse(policy.isExpiring(now + 11 * ONE_MINUTE));
+    }
+
+    @Test
+    public void testJitterExtendsTheWindowOnly() {
+        DefaultRefreshPolicy policy = newPolicy(10 * ONE_MINUTE, 5 * ONE_MINUTE, 0, 0.75f, 0);
+        long now = System.currentTimeMillis();
+        // the jitter of the JVM is between 0 and 5 minutes
+        assertTrue(policy.isExpiring(now + 10 * ONE_MINUTE - 1000));
+        assertFalse(policy.isExpiring(now + 15 * ONE_MINUTE + 1000));
+    }
+
+    @Test
+    public void testNegativeSettingsAreIgnored() {
+        DefaultRefreshPolicy policy = newPolicy(-ONE_MINUTE, -ONE_MINUTE, -ONE_MINUTE, 0.75f, 0);
+        assertEquals(0, policy.getMinFetchInterval());
+        assertFalse(policy.isExpiring(System.currentTimeMillis() + 1000));
+    }
+
+    @Test
+    public void testRefreshDelayAtLifetimeFraction() {
+        DefaultRefreshPolicy policy = newPolicy(0, 0, 0, 0.75f, 0);
+        long delay = policy.getRefreshDelay(System.currentTimeMillis() + ONE_HOUR);
+        assertTrue("Delay: " + delay, Math.abs(delay - 45 * ONE_MINUTE) < 1000);
+    }
+
+    @Test
+    public void testRefreshDelayBeforeExpiringWindow() {
+        // a refresh at 75% of the lifetime would happen after the token is already expiring
+        DefaultRefreshPolicy policy = newPolicy(30 * ONE_MINUTE, 0, 0, 0.75f, 0);
+        long delay = policy.getRefreshDelay(System.currentTimeMillis() + ONE_HOUR);
+        assertTrue("Delay: " + delay, delay <= 30 * ONE_MINUTE && delay > 29 * ONE_MINUTE);
+    }
+
+    @Test
+    public void testRefreshDelayAtLeastMinInterval() {
+        DefaultRefreshPolicy policy = newPolicy(10 * ONE_MINUTE, 0, ONE_MINUTE, 0.75f, 0);
+        long now = System.currentTimeMillis();
+        // already expiring or expired, it is not refreshed in a loop
+        assertEquals(ONE_MINUTE, policy.getRefreshDelay(now + 5 * ONE_MINUTE));
+        assertEquals(ONE_MINUTE, policy.getRefreshDelay(now - ONE_MINUTE));
+    }
+
+    @Test
+    public void testRefreshDelayJitter() {
+        DefaultRefreshPolicy policy = newPolicy(0, 0, 0, 0.75f, 0.1f);
+        long expiryTime = System.currentTimeMillis() + ONE_HOUR;
+        Set<Long> delays = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getRefreshDelay(expiryTime);
+            assertTrue("Delay: " + delay, delay >= 39 * ONE_MINUTE && delay <= 51 * ONE_MINUTE);
+            delays.add(delay);
+        }
+        assertTrue(delays.size() > 1);
+    }
+
+    private static DefaultRefreshPolicy newPolicy(long skew, long jitter, long minInterval, float lifetimeFraction, float jitterFraction) {
+        Configuration configuration = new Configuration(false);
+        configuration.setLong(DefaultRefreshPolicy.AZURE_CUSTOM_TOKEN_REFRESH_SKEW, skew);
+        configuration.setLong(DefaultRefreshPolicy.AZURE_CUSTOM_TOKEN_REFRESH_JITTER, jitter);
+        configuration.setLong(DefaultRefreshPolicy.AZURE_CUSTOM_TOKEN_REFRESH_MIN_INTERVAL, minInterval);
+        configuration.setFloat(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_LIFETIME_FRACTION, lifetimeFraction);
+        configuration.setFloat(CachedAccessTokenProvider.AZURE_CUSTOM_TOKEN_BACKGROUND_REFRESH_JITTER_FRACTION, jitterFraction);
+        DefaultRefreshPolicy policy = new DefaultRefreshPolicy();
+        policy.initialize(configuration);
+        return policy;
+    }
+}
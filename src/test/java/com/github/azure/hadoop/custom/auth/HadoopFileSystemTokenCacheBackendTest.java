@@ -0,0 +1,189 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HadoopFileSystemTokenCacheBackendTest {
+
+    private static final long EXPIRY_TIME = System.currentTimeMillis() + 3600 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Configuration configuration;
+
+    private File cacheFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheFolder = folder.newFolder();
+        configuration = new Configuration(false);
+        configuration.setClass("fs.file.impl", RacingLocalFileSystem.class, FileSystem.class);
+        configuration.setBoolean("fs.file.impl.disable.cache", true);
+        configuration.set(HadoopFileSystemTokenCacheBackend.AZURE_CUSTOM_TOKEN_HDFS_CACHE_PATH, "file://" + cacheFolder.getAbsolutePath());
+        configuration.setLong(HadoopFileSystemTokenCacheBackend.AZURE_CUSTOM_TOKEN_HDFS_LEASE_WAIT, 5000);
+        configuration.setLong(HadoopFileSystemTokenCacheBackend.AZURE_CUSTOM_TOKEN_HDFS_LEASE_POLL_INTERVAL, 20);
+        RacingLocalFileSystem.racingFile = null;
+    }
+
+    @Test
+    public void testStoreAndLookup() throws IOException {
+        HadoopFileSystemTokenCacheBackend backend = newBackend("identity");
+        assertNull(backend.lookup());
+        backend.store(newToken("token"));
+
+        AzureADToken token = newBackend("identity").lookup();
+        assertEquals("token", token.getAccessToken());
+        assertEquals(EXPIRY_TIME, token.getExpiry().getTime());
+        assertNull(newBackend("other").lookup());
+
+        backend.invalidate();
+        assertNull(backend.lookup());
+    }
+
+    @Test
+    public void testLeaseWaitTimesOut() throws IOException {
+        configuration.setLong(HadoopFileSystemTokenCacheBackend.AZURE_CUSTOM_TOKEN_HDFS_LEASE_WAIT, 200);
+        Closeable holder = newBackend("identity").lock();
+        assertNotNull(holder);
+        assertTrue(getLeaseFile("identity").exists());
+
+        // the token is fetched without the lease rather than waiting forever
+        long start = System.currentTimeMillis();
+        assertNull(newBackend("identity").lock());
+        assertTrue(System.currentTimeMillis() - start >= 100);
+
+        holder.close();
+        assertFalse(getLeaseFile("identity").exists());
+    }
+
+    @Test
+    public void testWaiterLooksUpTokenStoredByHolder() throws Exception {
+        HadoopFileSystemTokenCacheBackend holder = newBackend("identity");
+        Closeable lease = holder.lock();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Closeable> waiter = executor.submit(newLock(newBackend("identity")));
+            // later than the start of the wait, even with modification times in seconds
+            Thread.sleep(1100);
+            holder.store(newToken("token"));
+            lease.close();
+
+            // released without taking the lease, the waiter looks up the token stored meanwhile
+            Closeable released = waiter.get(10, TimeUnit.SECONDS);
+            assertNotNull(released);
+            assertFalse(getLeaseFile("identity").exists());
+            released.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWaiterTakesLeaseWhenHolderStoredNothing() throws Exception {
+        Closeable lease = newBackend("identity").lock();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Closeable> waiter = executor.submit(newLock(newBackend("identity")));
+            Thread.sleep(100);
+            lease.close();
+
+            Closeable taken = waiter.get(10, TimeUnit.SECONDS);
+            assertNotNull(taken);
+            assertTrue(getLeaseFile("identity").exists());
+            taken.close();
+            assertFalse(getLeaseFile("identity").exists());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStaleLeaseTakenOver() throws IOException {
+        configuration.setLong(HadoopFileSystemTokenCacheBackend.AZURE_CUSTOM_TOKEN_HDFS_LEASE_TIMEOUT, 1000);
+        Closeable stale = newBackend("identity").lock();
+        // the holder died long ago
+        File leaseFile = getLeaseFile("identity");
+        assertTrue(leaseFile.setLastModified(System.currentTimeMillis() - 60 * 1000));
+
+        Closeable taken = newBackend("identity").lock();
+        assertNotNull(taken);
+        assertTrue(leaseFile.lastModified() > System.currentTimeMillis() - 60 * 1000);
+
+        // the former holder coming back doesn't release the lease of the new one
+        stale.close();
+        assertTrue(leaseFile.exists());
+        taken.close();
+        assertFalse(leaseFile.exists());
+    }
+
+    @Test
+    public void testLeaseDisabled() throws IOException {
+        configuration.setBoolean(HadoopFileSystemTokenCacheBackend.AZURE_CUSTOM_TOKEN_HDFS_LEASE_ENABLED, false);
+        assertNull(newBackend("identity").lock());
+        assertFalse(getLeaseFile("identity").exists());
+    }
+
+    @Test
+    public void testCompactKeepsFolderWrittenWhileDeleted() throws IOException {
+        HadoopFileSystemTokenCacheBackend backend = newBackend("identity");
+        File root = new File(cacheFolder, "MSITokenCache");
+        File racing = new File(root, "racing");
+        File empty = new File(root, "empty");
+        assertTrue(racing.mkdirs() && empty.mkdirs());
+
+        // a writer stores a token between the listing of the folder and its delete
+        RacingLocalFileSystem.racingFile = new Path(racing.toURI().toString(), "latest.token");
+        assertEquals(1, backend.compact(100));
+        assertTrue(new File(racing, "latest.token").exists());
+        assertFalse(empty.exists());
+    }
+
+    private File getLeaseFile(String identityKey) {
+        return new File(cacheFolder, "MSITokenCache/" + Long.toHexString(MappedTokenCache.getIdentityHash(identityKey)) + "/latest.lease");
+    }
+
+    private static Callable<Closeable> newLock(final HadoopFileSystemTokenCacheBackend backend) {
+        return new Callable<Closeable>() {
+            @Override
+            public Closeable call() throws IOException {
+                return backend.lock();
+            }
+        };
+    }
+
+    private static AzureADToken newToken(String accessToken) {
+        AzureADToken token = new AzureADToken();
+        token.setAccessToken(accessToken);
+        token.setExpiry(new Date(EXPIRY_TIME));
+        return token;
+    }
+
+    private HadoopFileSystemTokenCacheBackend newBackend(String identityKey) throws IOException {
+        HadoopFileSystemTokenCacheBackend backend = new HadoopFileSystemTokenCacheBackend();
+        backend.initialize(configuration, identityKey);
+        return backend;
+    }
+}
@@ -0,0 +1,200 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedTokenCacheTest {
+
+    private static final int SLOT_COUNT = 4;
+    private static final long EXPIRY_TIME = System.currentTimeMillis() + 3600 * 1000;
+
+    // layout of the file, see MappedTokenCache
+    private static final int HEADER_SIZE = 64;
+    private static final int SEQUENCE_OFFSET = 0;
+    private static final int TOKEN_OFFSET = 32;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPutAndGet() throws IOException {
+        MappedTokenCache cache = newCache();
+        long identity = MappedTokenCache.getIdentityHash("identity");
+        assertNull(cache.get(identity));
+
+        assertTrue(cache.put(identity, new CachedToken("token-1", EXPIRY_TIME)));
+        assertEquals("token-1", cache.get(identity).getToken());
+        assertEquals(EXPIRY_TIME, cache.get(identity).getExpiryTime());
+
+        assertTrue(cache.put(identity, new CachedToken("token-2", EXPIRY_TIME + 1)));
+        assertEquals("token-2", cache.get(identity).getToken());
+        assertNull(cache.get(MappedTokenCache.getIdentityHash("other")));
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        MappedTokenCache cache = newCache();
+        long identity = MappedTokenCache.getIdentityHash("identity");
+        cache.put(identity, new CachedToken("token", EXPIRY_TIME));
+        cache.invalidate(identity);
+        assertTrue(cache.get(identity).isExpired());
+    }
+
+    @Test
+    public void testTokenTooLarge() throws IOException {
+        MappedTokenCache cache = newCache();
+        long identity = MappedTokenCache.getIdentityHash("identity");
+        char[] token = new char[MappedTokenCache.SLOT_SIZE];
+        Arrays.fill(token, 'x');
+        assertFalse(cache.put(identity, new CachedToken(new String(token), EXPIRY_TIME)));
+        assertNull(cache.get(identity));
+    }
+
+    @Test
+    public void testSlotBeingWrittenIsNotRead() throws IOException {
+        File file = newFile();
+        MappedTokenCache cache = MappedTokenCache.get(file, SLOT_COUNT);
+        long identity = MappedTokenCache.getIdentityHash("identity");
+        cache.put(identity, new CachedToken("token", EXPIRY_TIME));
+
+        MappedByteBuffer raw = map(file);
+        int offset = getSlotOffset(identity);
+        long sequence = raw.getLong(offset + SEQUENCE_OFFSET);
+        // a writer of another JVM is in the middle of the write
+        raw.putLong(offset + SEQUENCE_OFFSET, sequence + 1);
+        assertNull(cache.get(identity));
+
+        raw.putLong(offset + SEQUENCE_OFFSET, sequence);
+        assertEquals("token", cache.get(identity).getToken());
+    }
+
+    @Test
+    public void testTornSlotIsNotRead() throws IOException {
+        File file = newFile();
+        MappedTokenCache cache = MappedTokenCache.get(file, SLOT_COUNT);
+        long identity = MappedTokenCache.getIdentityHash("identity");
+        cache.put(identity, new CachedToken("token", EXPIRY_TIME));
+
+        // the token changed under a stable sequence, e.g. stores seen out of order
+        MappedByteBuffer raw = map(file);
+        int offset = getSlotOffset(identity);
+        raw.put(offset + TOKEN_OFFSET, (byte) 'T');
+        assertNull(cache.get(identity));
+    }
+
+    @Test
+    public void testWriteAfterWriterDied() throws IOException {
+        File file = newFile();
+        MappedTokenCache cache = MappedTokenCache.get(file, SLOT_COUNT);
+        long identity = MappedTokenCache.getIdentityHash("identity");
+        cache.put(identity, new CachedToken("token-1", EXPIRY_TIME));
+
+        // a writer died with the sequence odd, the next writer makes it even again
+        MappedByteBuffer raw = map(file);
+        int offset = getSlotOffset(identity);
+        raw.putLong(offset + SEQUENCE_OFFSET, raw.getLong(offset + SEQUENCE_OFFSET) + 1);
+        assertNull(cache.get(identity));
+
+        cache.put(identity, new CachedToken("token-2", EXPIRY_TIME));
+        assertEquals(0, raw.getLong(offset + SEQUENCE_OFFSET) & 1);
+        assertEquals("token-2", cache.get(identity).getToken());
+    }
+
+    @Test
+    public void testFullTableReplacesTokenExpiringFirst() throws IOException {
+        MappedTokenCache cache = newCache();
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            cache.put(MappedTokenCache.getIdentityHash("identity-" + i), new CachedToken("token-" + i, EXPIRY_TIME + i));
+        }
+        long identity = MappedTokenCache.getIdentityHash("new-identity");
+        cache.put(identity, new CachedToken("new-token", EXPIRY_TIME));
+
+        assertEquals("new-token", cache.get(identity).getToken());
+        assertNull(cache.get(MappedTokenCache.getIdentityHash("identity-0")));
+        for (int i = 1; i < SLOT_COUNT; i++) {
+            assertEquals("token-" + i, cache.get(MappedTokenCache.getIdentityHash("identity-" + i)).getToken());
+        }
+    }
+
+    @Test
+    public void testConcurrentReadsNeverSeeTornTokens() throws Exception {
+        final MappedTokenCache cache = newCache();
+        final long identity = MappedTokenCache.getIdentityHash("identity");
+        final String tokenA = repeat('a', 4000);
+        final String tokenB = repeat('b', 4000);
+        cache.put(identity, new CachedToken(tokenA, EXPIRY_TIME));
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 20000; i++) {
+                        cache.put(identity, new CachedToken(i % 2 == 0 ? tokenB : tokenA, EXPIRY_TIME));
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                } finally {
+                    done.set(true);
+                }
+            }
+        };
+        writer.start();
+        int reads = 0;
+        while (!done.get()) {
+            CachedToken token = cache.get(identity);
+            if (token != null) {
+                assertTrue("Torn token read", token.getToken().equals(tokenA) || token.getToken().equals(tokenB));
+                reads++;
+            }
+        }
+        writer.join();
+        assertNull(failure.get());
+        assertTrue(reads > 0);
+        assertNotNull(cache.get(identity));
+    }
+
+    private MappedTokenCache newCache() throws IOException {
+        return MappedTokenCache.get(newFile(), SLOT_COUNT);
+    }
+
+    private File newFile() throws IOException {
+        return new File(folder.newFolder(), "tokens.mmap");
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static int getSlotOffset(long identityHash) {
+        return HEADER_SIZE + (int) Math.floorMod(identityHash, (long) SLOT_COUNT) * MappedTokenCache.SLOT_SIZE;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathIsNotEmptyDirectoryException;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+import java.io.IOException;
+
+/**
+ * The local file system failing like HDFS on the delete of a folder which is not empty, and where a writer
+ * can be made to create a file in a folder just before it is deleted.
+ */
+public class RacingLocalFileSystem extends RawLocalFileSystem {
+
+    // created just before its parent folder is deleted
+    static volatile Path racingFile;
+
+    @Override
+    public boolean delete(Path path, boolean recursive) throws IOException {
+        Path file = racingFile;
+        if (file != null && makeQualified(file.getParent()).equals(makeQualified(path))) {
+            racingFile = null;
+            create(file, true).close();
+        }
+        if (!recursive && exists(path) && getFileStatus(path).isDirectory() && listStatus(path).length > 0) {
+            throw new PathIsNotEmptyDirectoryException(path.toString());
+        }
+        return super.delete(path, recursive);
+    }
+}
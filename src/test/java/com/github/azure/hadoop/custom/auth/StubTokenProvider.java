@@ -0,0 +1,59 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for Azure AD: counts the fetches of all its instances and returns tokens with a short lifetime.
+ */
+public class StubTokenProvider implements AzureADTokenProvider {
+
+    static final String STUB_TOKEN_LIFETIME = "test.stub.token.lifetime";
+    static final String STUB_FETCH_DELAY = "test.stub.fetch.delay";
+
+    static final AtomicInteger FETCHES = new AtomicInteger();
+
+    private long lifetime;
+
+    private long fetchDelay;
+
+    private volatile long expiryTime;
+
+    @Override
+    public void initialize(Configuration configuration, String accountName) {
+        this.lifetime = configuration.getLong(STUB_TOKEN_LIFETIME, 3600 * 1000);
+        this.fetchDelay = configuration.getLong(STUB_FETCH_DELAY, 0);
+    }
+
+    @Override
+    public AzureADToken getAzureADToken() throws IOException {
+        int fetch = FETCHES.incrementAndGet();
+        if (fetchDelay > 0) {
+            try {
+                Thread.sleep(fetchDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        AzureADToken token = new AzureADToken();
+        token.setAccessToken("token-" + fetch);
+        expiryTime = System.currentTimeMillis() + lifetime;
+        token.setExpiry(new Date(expiryTime));
+        return token;
+    }
+
+    @Override
+    public String getAccessToken() throws IOException {
+        return getAzureADToken().getAccessToken();
+    }
+
+    @Override
+    public Date getExpiryTime() {
+        return new Date(expiryTime);
+    }
+}
@@ -0,0 +1,172 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.azurebfs.oauth2.AzureADToken;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.AZURE_BACKOFF_INTERVAL;
+import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.AZURE_CUSTOM_TOKEN_FETCH_RETRY_COUNT;
+import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.AZURE_MAX_BACKOFF_INTERVAL;
+import static org.apache.hadoop.fs.azurebfs.constants.ConfigurationKeys.AZURE_MIN_BACKOFF_INTERVAL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TokenFetchRetryEngineTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void testRetriesUntilSuccess() throws IOException {
+        TokenFetchRetryEngine engine = new TokenFetchRetryEngine(newConfiguration(), CircuitBreakerTest.newEndpoint());
+        FailingFetch fetch = new FailingFetch(2, new IOException("unreachable"));
+        assertEquals("token", engine.execute(fetch, null).getAccessToken());
+        assertEquals(3, fetch.attempts.get());
+    }
+
+    @Test
+    public void testGivesUpAfterRetryCount() {
+        TokenFetchRetryEngine engine = new TokenFetchRetryEngine(newConfiguration(), CircuitBreakerTest.newEndpoint());
+        FailingFetch fetch = new FailingFetch(Integer.MAX_VALUE, new IOException("unreachable"));
+        assertFails(engine, fetch);
+        assertEquals(4, fetch.attempts.get());
+    }
+
+    @Test
+    public void testRetryBudgetSharedPerEndpoint() {
+        // no deposit per request, only the reserve of two retries for all the engines of the endpoint
+        Configuration configuration = newConfiguration();
+        configuration.setFloat(TokenFetchRetryEngine.AZURE_CUSTOM_TOKEN_FETCH_RETRY_BUDGET_RATIO, 0);
+        configuration.setInt(TokenFetchRetryEngine.AZURE_CUSTOM_TOKEN_FETCH_RETRY_BUDGET_RESERVE, 2);
+        String endpoint = CircuitBreakerTest.newEndpoint();
+
+        FailingFetch first = new FailingFetch(Integer.MAX_VALUE, new IOException("unreachable"));
+        assertFails(new TokenFetchRetryEngine(configuration, endpoint), first);
+        assertEquals(3, first.attempts.get());
+
+        FailingFetch second = new FailingFetch(Integer.MAX_VALUE, new IOException("unreachable"));
+        assertFails(new TokenFetchRetryEngine(configuration, endpoint), second);
+        assertEquals(1, second.attempts.get());
+    }
+
+    @Test
+    public void testRetryBudgetRefilledByRequests() throws IOException {
+        Configuration configuration = newConfiguration();
+        configuration.setFloat(TokenFetchRetryEngine.AZURE_CUSTOM_TOKEN_FETCH_RETRY_BUDGET_RATIO, 0.5f);
+        configuration.setInt(TokenFetchRetryEngine.AZURE_CUSTOM_TOKEN_FETCH_RETRY_BUDGET_RESERVE, 1);
+        TokenFetchRetryEngine engine = new TokenFetchRetryEngine(configuration, CircuitBreakerTest.newEndpoint());
+
+        FailingFetch exhausting = new FailingFetch(Integer.MAX_VALUE, new IOException("unreachable"));
+        assertFails(engine, exhausting);
+        assertEquals(2, exhausting.attempts.get());
+        // two successful requests deposit one retry
+        engine.execute(new FailingFetch(0, null), null);
+        engine.execute(new FailingFetch(0, null), null);
+        FailingFetch retried = new FailingFetch(1, new IOException("unreachable"));
+        assertEquals("token", engine.execute(retried, null).getAccessToken());
+        assertEquals(2, retried.attempts.get());
+    }
+
+    @Test
+    public void testOpenCircuitBreakerStopsRetries() throws IOException {
+        Configuration configuration = newConfiguration();
+        configuration.setBoolean(CircuitBreaker.AZURE_CUSTOM_TOKEN_CIRCUIT_BREAKER_ENABLED, true);
+        configuration.setInt(CircuitBreaker.AZURE_CUSTOM_TOKEN_CIRCUIT_BREAKER_FAILURE_THRESHOLD, 2);
+        TokenFetchRetryEngine engine = new TokenFetchRetryEngine(configuration, CircuitBreakerTest.newEndpoint());
+
+        FailingFetch fetch = new FailingFetch(Integer.MAX_VALUE, CircuitBreakerTest.httpError(503));
+        assertFails(engine, fetch);
+        assertEquals(2, fetch.attempts.get());
+
+        // while it is open, the endpoint is not requested and the last known good token is served
+        AzureADToken lastKnownGood = newToken("last-known-good");
+        FailingFetch rejected = new FailingFetch(0, null);
+        assertSame(lastKnownGood, engine.execute(rejected, lastKnownGood));
+        assertEquals(0, rejected.attempts.get());
+    }
+
+    @Test
+    public void testRuntimeExceptionNotRetried() throws IOException {
+        TokenFetchRetryEngine engine = new TokenFetchRetryEngine(newConfiguration(), CircuitBreakerTest.newEndpoint());
+        FailingFetch fetch = new FailingFetch(Integer.MAX_VALUE, null);
+        try {
+            engine.execute(fetch, null);
+            fail("A runtime exception must not be retried");
+        } catch (IllegalStateException e) {
+            assertEquals(1, fetch.attempts.get());
+        }
+    }
+
+    @Test
+    public void testAsyncRetriesUntilSuccess() throws Exception {
+        TokenFetchRetryEngine engine = new TokenFetchRetryEngine(newConfiguration(), CircuitBreakerTest.newEndpoint());
+        FailingFetch fetch = new FailingFetch(2, new IOException("unreachable"));
+        assertEquals("token", engine.executeAsync(fetch, null, DIRECT).get(10, TimeUnit.SECONDS).getAccessToken());
+        assertEquals(3, fetch.attempts.get());
+    }
+
+    private static void assertFails(TokenFetchRetryEngine engine, FailingFetch fetch) {
+        try {
+            engine.execute(fetch, null);
+            fail("The fetch must fail");
+        } catch (IOException e) {
+            assertSame(fetch.failure, e);
+        }
+    }
+
+    private static Configuration newConfiguration() {
+        Configuration configuration = new Configuration(false);
+        configuration.setInt(AZURE_MIN_BACKOFF_INTERVAL, 1);
+        configuration.setInt(AZURE_MAX_BACKOFF_INTERVAL, 10);
+        configuration.setInt(AZURE_BACKOFF_INTERVAL, 10);
+        configuration.setInt(AZURE_CUSTOM_TOKEN_FETCH_RETRY_COUNT, 3);
+        configuration.setBoolean(TokenProviderMetrics.AZURE_CUSTOM_TOKEN_METRICS_ENABLED, false);
+        return configuration;
+    }
+
+    private static AzureADToken newToken(String accessToken) {
+        AzureADToken token = new AzureADToken();
+        token.setAccessToken(accessToken);
+        token.setExpiry(new Date(System.currentTimeMillis() + 3600 * 1000));
+        return token;
+    }
+
+    /**
+     * Fails the first attempts with the given exception, or with a runtime exception if there is none.
+     */
+    private static final class FailingFetch implements TokenFetchRetryEngine.TokenFetch {
+
+        private final int failures;
+
+        private final IOException failure;
+
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        FailingFetch(int failures, IOException failure) {
+            this.failures = failures;
+            this.failure = failure;
+        }
+
+        @Override
+        public AzureADToken fetch() throws IOException {
+            if (attempts.incrementAndGet() <= failures) {
+                if (failure == null) {
+                    throw new IllegalStateException("bug");
+                }
+                throw failure;
+            }
+            return newToken("token");
+        }
+    }
+}
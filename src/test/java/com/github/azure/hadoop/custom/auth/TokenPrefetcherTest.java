@@ -0,0 +1,47 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenPrefetcherTest {
+
+    @Before
+    public void setUp() {
+        TokenRegistry.clear();
+        StubTokenProvider.FETCHES.set(0);
+    }
+
+    @After
+    public void tearDown() {
+        TokenRegistry.clear();
+    }
+
+    @Test
+    public void testPrefetchOncePerIdentity() throws Exception {
+        Configuration configuration = CachedAccessTokenProviderTest.newConfiguration("prefetch");
+        configuration.setInt(TokenPrefetcher.AZURE_CUSTOM_TOKEN_PREFETCH_CONCURRENCY, 1);
+        TokenPrefetcher.prefetch(CachedAccessTokenProvider.class, configuration,
+                Arrays.asList("account1", "account2", "account3"), Arrays.asList("prefetch-1", "prefetch-2"), "account1")
+                .get(10, TimeUnit.SECONDS);
+        assertEquals(3, StubTokenProvider.FETCHES.get());
+
+        // the providers created later find the tokens
+        CachedAccessTokenProviderTest.newProvider(configuration).getAzureADToken();
+        assertEquals(3, StubTokenProvider.FETCHES.get());
+    }
+
+    @Test
+    public void testNothingToPrefetch() throws Exception {
+        TokenPrefetcher.prefetch(CachedAccessTokenProvider.class, CachedAccessTokenProviderTest.newConfiguration("none"),
+                Collections.<String>emptyList(), Collections.<String>emptyList(), "account").get(10, TimeUnit.SECONDS);
+        assertEquals(0, StubTokenProvider.FETCHES.get());
+    }
+}
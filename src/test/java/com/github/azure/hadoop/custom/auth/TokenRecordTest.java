@@ -0,0 +1,242 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.crypto.key.KeyProvider;
+import org.apache.hadoop.crypto.key.KeyProviderFactory;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TokenRecordTest {
+
+    private static final long IDENTITY_HASH = MappedTokenCache.getIdentityHash("test-identity");
+    private static final long EXPIRY_TIME = System.currentTimeMillis() + 3600 * 1000;
+    private static final String TOKEN = "eyJ0eXAiOiJKV1QiLCJhbGciOiJSUzI1NiJ9.test-token";
+
+    // offsets of the header fields, see TokenRecord
+    private static final int FLAGS_OFFSET = 5;
+    private static final int EXPIRY_OFFSET = 22;
+    private static final int CRC_OFFSET = 34;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPlainTextRoundTrip() throws IOException {
+        TokenEncryption encryption = TokenEncryption.get(new Configuration(false));
+        byte[] record = encode(encryption);
+
+        assertEquals(0, record[FLAGS_OFFSET]);
+        assertTrue(new String(record, StandardCharsets.UTF_8).contains(TOKEN));
+        TokenRecord.Header header = readHeader(record);
+        assertEquals(IDENTITY_HASH, header.getIdentityHash());
+        assertEquals(EXPIRY_TIME, header.getExpiryTime());
+        assertFalse(header.isEncrypted());
+        assertToken(readToken(record, encryption));
+    }
+
+    @Test
+    public void testEncryptedRoundTrip() throws IOException {
+        TokenEncryption encryption = TokenEncryption.get(staticKeyConfiguration(newKey()));
+        byte[] record = encode(encryption);
+
+        assertEquals(1, record[FLAGS_OFFSET]);
+        assertFalse(new String(record, StandardCharsets.UTF_8).contains(TOKEN));
+        TokenRecord.Header header = readHeader(record);
+        assertTrue(header.isEncrypted());
+        assertFalse(header.hasWrappedKey());
+        assertToken(readToken(record, encryption));
+    }
+
+    @Test
+    public void testNotARecord() throws IOException {
+        byte[] data = Arrays.copyOf(TOKEN.getBytes(StandardCharsets.UTF_8), TokenRecord.HEADER_SIZE);
+        assertNull(readHeader(data));
+    }
+
+    @Test
+    public void testUnsupportedVersion() throws IOException {
+        byte[] record = encode(TokenEncryption.get(new Configuration(false)));
+        record[4] = TokenRecord.VERSION + 1;
+        try {
+            readHeader(record);
+            fail("A record of another version must be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("version"));
+        }
+    }
+
+    @Test
+    public void testCorruptedPayloadFailsCrc() throws IOException {
+        TokenEncryption encryption = TokenEncryption.get(new Configuration(false));
+        byte[] record = encode(encryption);
+        record[record.length - 1] ^= 1;
+        assertRejected(record, encryption, "CRC");
+    }
+
+    @Test
+    public void testTamperedHeaderFailsCrc() throws IOException {
+        TokenEncryption encryption = TokenEncryption.get(new Configuration(false));
+        byte[] record = encode(encryption);
+        ByteBuffer.wrap(record).putLong(EXPIRY_OFFSET, EXPIRY_TIME + 3600 * 1000);
+        assertRejected(record, encryption, "CRC");
+    }
+
+    @Test
+    public void testTamperedHeaderFailsAuthentication() throws IOException {
+        // the CRC only detects accidents, the expiry time is authenticated by AES-GCM
+        TokenEncryption encryption = TokenEncryption.get(staticKeyConfiguration(newKey()));
+        byte[] record = encode(encryption);
+        ByteBuffer.wrap(record).putLong(EXPIRY_OFFSET, EXPIRY_TIME + 3600 * 1000);
+        updateCrc(record);
+        assertRejected(record, encryption, "decrypt");
+    }
+
+    @Test
+    public void testWrongKey() throws IOException {
+        byte[] record = encode(TokenEncryption.get(staticKeyConfiguration(newKey())));
+        assertRejected(record, TokenEncryption.get(staticKeyConfiguration(newKey())), "decrypt");
+    }
+
+    @Test
+    public void testEncryptedRecordWithoutKey() throws IOException {
+        byte[] record = encode(TokenEncryption.get(staticKeyConfiguration(newKey())));
+        assertRejected(record, TokenEncryption.get(new Configuration(false)), "no key");
+    }
+
+    @Test
+    public void testPlainTextRejectedWhenEncryptionRequired() throws IOException {
+        byte[] record = encode(TokenEncryption.get(new Configuration(false)));
+        Configuration configuration = staticKeyConfiguration(newKey());
+        configuration.setBoolean(TokenEncryption.AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_REQUIRED, true);
+        assertRejected(record, TokenEncryption.get(configuration), "not encrypted");
+    }
+
+    @Test(expected = IOException.class)
+    public void testEncryptionRequiredWithoutKey() throws IOException {
+        Configuration configuration = new Configuration(false);
+        configuration.setBoolean(TokenEncryption.AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_REQUIRED, true);
+        TokenEncryption.get(configuration);
+    }
+
+    @Test
+    public void testWrappedDataKeyRoundTrip() throws Exception {
+        Configuration configuration = keyProviderConfiguration("tokens");
+        TokenEncryption writer = TokenEncryption.get(configuration);
+        byte[] record = encode(writer);
+
+        assertEquals(3, record[FLAGS_OFFSET]);
+        TokenRecord.Header header = readHeader(record);
+        assertTrue(header.isEncrypted());
+        assertTrue(header.hasWrappedKey());
+        // the data key is reused by the next records of the JVM
+        byte[] next = encode(writer);
+        assertArrayEquals(Arrays.copyOfRange(record, TokenRecord.HEADER_SIZE, TokenRecord.HEADER_SIZE + 2 + getWrappedKeyLength(record)),
+                Arrays.copyOfRange(next, TokenRecord.HEADER_SIZE, TokenRecord.HEADER_SIZE + 2 + getWrappedKeyLength(next)));
+        assertToken(readToken(record, TokenEncryption.get(configuration)));
+    }
+
+    @Test
+    public void testWrappedDataKeyWithoutKeyProvider() throws Exception {
+        byte[] record = encode(TokenEncryption.get(keyProviderConfiguration("tokens")));
+        assertRejected(record, TokenEncryption.get(staticKeyConfiguration(newKey())), "no key provider");
+    }
+
+    @Test
+    public void testTruncatedWrappedDataKey() throws Exception {
+        TokenEncryption encryption = TokenEncryption.get(keyProviderConfiguration("tokens"));
+        byte[] record = encode(encryption);
+        ByteBuffer.wrap(record).putShort(TokenRecord.HEADER_SIZE, (short) 0xFFFF);
+        updateCrc(record);
+        assertRejected(record, encryption, "truncated");
+    }
+
+    private static byte[] encode(TokenEncryption encryption) throws IOException {
+        return TokenRecord.encode(IDENTITY_HASH, new CachedToken(TOKEN, EXPIRY_TIME), encryption);
+    }
+
+    private static TokenRecord.Header readHeader(byte[] record) throws IOException {
+        return TokenRecord.readHeader(new DataInputStream(new ByteArrayInputStream(record)));
+    }
+
+    private static CachedToken readToken(byte[] record, TokenEncryption encryption) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        return TokenRecord.readToken(in, TokenRecord.readHeader(in), encryption);
+    }
+
+    private static void assertToken(CachedToken token) {
+        assertEquals(TOKEN, token.getToken());
+        assertEquals(EXPIRY_TIME, token.getExpiryTime());
+    }
+
+    private static void assertRejected(byte[] record, TokenEncryption encryption, String reason) {
+        try {
+            readToken(record, encryption);
+            fail("The record must be rejected: " + reason);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        }
+    }
+
+    private static int getWrappedKeyLength(byte[] record) {
+        return ByteBuffer.wrap(record).getShort(TokenRecord.HEADER_SIZE) & 0xFFFF;
+    }
+
+    private static void updateCrc(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, CRC_OFFSET);
+        crc.update(record, TokenRecord.HEADER_SIZE, record.length - TokenRecord.HEADER_SIZE);
+        ByteBuffer.wrap(record).putInt(CRC_OFFSET, (int) crc.getValue());
+    }
+
+    private static String newKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return Base64.getEncoder().encodeToString(key);
+    }
+
+    private static Configuration staticKeyConfiguration(String key) {
+        Configuration configuration = new Configuration(false);
+        configuration.set(TokenRecord.AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KEY, key);
+        return configuration;
+    }
+
+    /**
+     * A Java keystore holding the key wrapping the data keys stands in for the KMS.
+     */
+    private Configuration keyProviderConfiguration(String keyName) throws Exception {
+        File keystore = new File(folder.getRoot(), "kms.jceks");
+        String path = "jceks://file" + keystore.getAbsolutePath();
+        Configuration configuration = new Configuration(false);
+        configuration.set(CommonConfigurationKeysPublic.HADOOP_SECURITY_KEY_PROVIDER_PATH, path);
+        configuration.set(TokenEncryption.AZURE_CUSTOM_TOKEN_CACHE_ENCRYPTION_KMS_KEY, keyName);
+        if (!keystore.exists()) {
+            KeyProvider provider = KeyProviderFactory.get(new URI(path), configuration);
+            KeyProvider.Options options = KeyProvider.options(configuration);
+            options.setBitLength(128);
+            provider.createKey(keyName, options);
+            provider.flush();
+        }
+        return configuration;
+    }
+}
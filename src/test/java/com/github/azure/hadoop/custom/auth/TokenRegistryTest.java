@@ -0,0 +1,125 @@
+package com.github.azure.hadoop.custom.auth;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TokenRegistryTest {
+
+    @Before
+    public void setUp() {
+        TokenRegistry.clear();
+    }
+
+    @After
+    public void tearDown() {
+        TokenRegistry.clear();
+    }
+
+    @Test
+    public void testEntrySharedPerIdentity() {
+        Configuration configuration = new Configuration(false);
+        TokenRegistry.Entry entry = TokenRegistry.getEntry("identity", configuration);
+        assertSame(entry, TokenRegistry.getEntry("identity", configuration));
+        assertNotSame(entry, TokenRegistry.getEntry("other", configuration));
+        assertEquals("identity", entry.getIdentityKey());
+    }
+
+    @Test
+    public void testIdentityKey() {
+        StubTokenProvider impl = new StubTokenProvider();
+        Configuration configuration = CachedAccessTokenProviderTest.newConfiguration("client");
+        String key = TokenRegistry.getIdentityKey(configuration, impl);
+        assertEquals(key, TokenRegistry.getIdentityKey(CachedAccessTokenProviderTest.newConfiguration(" client "), impl));
+        assertNotEquals(key, TokenRegistry.getIdentityKey(CachedAccessTokenProviderTest.newConfiguration("other"), impl));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws InterruptedException {
+        Configuration configuration = new Configuration(false);
+        configuration.setInt(TokenRegistry.AZURE_CUSTOM_TOKEN_REGISTRY_MAX_ENTRIES, 2);
+        TokenRegistry.Entry first = TokenRegistry.getEntry("first", configuration);
+        Thread.sleep(10);
+        TokenRegistry.Entry second = TokenRegistry.getEntry("second", configuration);
+        Thread.sleep(10);
+        TokenRegistry.Entry third = TokenRegistry.getEntry("third", configuration);
+
+        assertSame(second, TokenRegistry.getEntry("second", configuration));
+        assertSame(third, TokenRegistry.getEntry("third", configuration));
+        assertNotSame(first, TokenRegistry.getEntry("first", configuration));
+    }
+
+    @Test
+    public void testIdleEntryEvicted() throws InterruptedException {
+        Configuration configuration = new Configuration(false);
+        configuration.setLong(TokenRegistry.AZURE_CUSTOM_TOKEN_REGISTRY_IDLE_TIMEOUT, 50);
+        TokenRegistry.Entry idle = TokenRegistry.getEntry("idle", configuration);
+        Thread.sleep(100);
+        TokenRegistry.Entry created = TokenRegistry.getEntry("created", configuration);
+
+        // the entry just created is kept even though the timeout is shorter than the test
+        assertSame(created, TokenRegistry.getEntry("created", configuration));
+        assertNotSame(idle, TokenRegistry.getEntry("idle", configuration));
+    }
+
+    @Test
+    public void testEvictionCancelsBackgroundRefresh() throws InterruptedException {
+        Configuration configuration = new Configuration(false);
+        configuration.setInt(TokenRegistry.AZURE_CUSTOM_TOKEN_REGISTRY_MAX_ENTRIES, 1);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            TokenRegistry.Entry evicted = TokenRegistry.getEntry("evicted", configuration);
+            ScheduledFuture<?> task = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, 1, TimeUnit.HOURS);
+            evicted.setBackgroundRefreshTask(task);
+            Thread.sleep(10);
+            TokenRegistry.getEntry("created", configuration);
+            assertTrue(task.isCancelled());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testProvidersHeldWeakly() throws Exception {
+        TokenRegistry.Entry entry = TokenRegistry.getEntry("identity", new Configuration(false));
+        assertNull(entry.getProvider());
+
+        CachedAccessTokenProvider provider = newProvider();
+        entry.addProvider(provider);
+        entry.addProvider(provider);
+        assertSame(provider, entry.getProvider());
+
+        WeakReference<CachedAccessTokenProvider> collected = new WeakReference<>(provider);
+        provider = null;
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (collected.get() != null && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(collected.get());
+        assertNull(entry.getProvider());
+    }
+
+    private static CachedAccessTokenProvider newProvider() throws IOException {
+        return CachedAccessTokenProviderTest.newProvider(CachedAccessTokenProviderTest.newConfiguration("weak"));
+    }
+}